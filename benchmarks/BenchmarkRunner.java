@@ -0,0 +1,60 @@
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * Runs <code>StageBenchmarks</code> with the GC profiler and writes the results as JSON, so that runs can be compared
+ * over time(eg. with <a href="https://jmh.morethan.io">jmh.morethan.io</a> or any JSON tool).
+ *
+ * Usage: <code>java BenchmarkRunner [JMH options] [regex of benchmarks to run]</code>
+ * The arguments are parsed like those of the JMH main class, eg. <code>-p size=2048 -p cells=40</code> for the parameters of the
+ * benchmarks or <code>-rff &lt;file&gt;</code> for the result file. Unless the arguments say otherwise, <code>StageBenchmarks</code> is run
+ * with the GC profiler and the results are written to <code>jmh-result.json</code>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        CommandLineOptions commandLineOptions;
+        try {
+            commandLineOptions = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.err.println("Error parsing command line: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        //the defaults below are only added where the command line gives nothing. Profilers of the command line are added to
+        //those of the builder, so the GC profiler is only added when it is not named there
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLineOptions);
+        if (!hasGCProfiler(commandLineOptions)) {
+            options.addProfiler(GCProfiler.class);
+        }
+        if (commandLineOptions.getIncludes().isEmpty()) {
+            options.include(StageBenchmarks.class.getSimpleName());
+        }
+        if (!commandLineOptions.getResultFormat().hasValue()) {
+            //JMH names the result file after the format, jmh-result.json
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        new Runner(options.build()).run();
+    }
+
+    /*
+    true if the GC profiler was asked for on the command line, by its alias or by its class
+     */
+    private static boolean hasGCProfiler(CommandLineOptions commandLineOptions) {
+        for (ProfilerConfig profiler : commandLineOptions.getProfilers()) {
+            String name = profiler.getKlass();
+            if (name.equals("gc") || name.equals(GCProfiler.class.getName()) || name.equals(GCProfiler.class.getSimpleName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,53 @@
+import ij.ImagePlus;
+import ij.gui.Roi;
+
+/**
+ * Checks that <code>ActiveContours</code> and <code>NarrowBandActiveContours</code>, each with its own parameters as picked by
+ * <code>LevelSetParameters.setParametersForCurveEvolution</code>, converge to about the same cells on a <code>SyntheticEmbryo</code>.
+ * Run it after changing the tiers of either engine.
+ *
+ * Usage: <code>java EngineAgreement [size] [cells] [tolerance]</code>
+ * Prints the area found by both engines for every cell and exits with 1 if, for any cell, the narrow band area differs by more
+ * than <code>tolerance</code>(default 0.2) of the area found by ActiveContours.
+ */
+public class EngineAgreement {
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int cells = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.2;
+
+        SyntheticEmbryo embryo = new SyntheticEmbryo(size, cells, 42);
+        ImagePlus original = embryo.getOriginal();
+        //interior rois are what the particle analyzer finds in the threshold image
+        Roi[] interiorRois = embryo.getCellRois(-4);
+
+        int disagreements = 0;
+        for (int i = 0; i < interiorRois.length; i++) {
+            LevelSetParameters parameters = new LevelSetParameters();
+            parameters.setParametersForCurveEvolution(original, interiorRois[i]);
+            int activeContoursArea = getEvolvedArea(original, parameters);
+            parameters.setNarrowBand(true);
+            int narrowBandArea = getEvolvedArea(original, parameters);
+
+            double difference = Math.abs(narrowBandArea - activeContoursArea) / (double) Math.max(1, activeContoursArea);
+            boolean agrees = difference <= tolerance;
+            if (!agrees) {
+                disagreements++;
+            }
+            System.out.println("cell " + i + ": ActiveContours " + activeContoursArea + " px, narrow band " + narrowBandArea + " px"
+                    + (agrees ? "" : " <- differs by " + Math.round(100 * difference) + "%"));
+        }
+        System.out.println(disagreements + " of " + interiorRois.length + " cells differ by more than " + Math.round(100 * tolerance) + "%");
+        System.exit(disagreements == 0 ? 0 : 1);
+    }
+
+    /*
+    area of the roi evolved with the engine selected in parameters, 0 if it vanished
+     */
+    private static int getEvolvedArea(ImagePlus original, LevelSetParameters parameters) {
+        ImagePlus seg = LevelSetUtility.getSegImage(original, parameters);
+        Roi evolved = LevelSetUtility.toRoi(seg, parameters.getMaskForeground());
+        return evolved == null ? 0 : RoiStore.getArea(evolved);
+    }
+}
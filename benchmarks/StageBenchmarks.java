@@ -0,0 +1,177 @@
+import ij.ImagePlus;
+import ij.gui.Roi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the hot path of every stage and for the whole pipeline(minus Weka, which needs a trained model).
+ * All of them run on a <code>SyntheticEmbryo</code> of <code>size</code> x <code>size</code> px with <code>cells</code> cells.
+ *
+ * Throughput is reported in ops/s. Run with the GC profiler(see <code>BenchmarkRunner</code>) to also get the
+ * allocation rate, <code>gc.alloc.rate.norm</code> being the bytes allocated per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StageBenchmarks {
+
+    @Param({"512", "1024"})
+    public int size;
+
+    @Param({"16", "64"})
+    public int cells;
+
+    private SyntheticEmbryo embryo;
+    private Roi[] interiorRois;
+    private Roi[] overlappingRois;
+    private LevelSetParameters levelSetParameters;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        embryo = new SyntheticEmbryo(size, cells, 42);
+        //interior rois are what the particle analyzer finds in the threshold image
+        interiorRois = embryo.getCellRois(-4);
+        //grown rois overlap their neighbours, so the resolver has some work to do
+        overlappingRois = embryo.getCellRois(6);
+
+        levelSetParameters = new LevelSetParameters();
+        levelSetParameters.setParametersForCurveEvolution(embryo.getOriginal(), interiorRois[interiorRois.length / 2]);
+    }
+
+    /**
+     * Images that the stages change in place, copied before every call
+     */
+    @State(Scope.Thread)
+    public static class Copies {
+        ImagePlus probabilityMap;
+        ImagePlus thresholdImage;
+        ImagePlus cellMask;
+
+        @Setup(Level.Invocation)
+        public void copy(StageBenchmarks benchmarks) {
+            probabilityMap = benchmarks.embryo.getProbabilityMap().duplicate();
+            thresholdImage = benchmarks.embryo.getThresholdImage().duplicate();
+            cellMask = benchmarks.embryo.getCellMask().duplicate();
+        }
+    }
+
+    /**
+     * Curve evolution of a single cell, ie, the inner loop of <code>LevelSetStage</code>
+     */
+    @Benchmark
+    public ImagePlus levelSetSingleRoi() {
+        return LevelSetUtility.getSegImage(embryo.getOriginal(), new LevelSetParameters(levelSetParameters));
+    }
+
+    /**
+     * Same as <code>levelSetSingleRoi</code>, but evolved inside a window around the roi
+     * @see LevelSetParameters#setCropToRoi(boolean)
+     */
+    @Benchmark
+    public ImagePlus levelSetSingleRoiCropped() {
+        LevelSetParameters parameters = new LevelSetParameters(levelSetParameters);
+        parameters.setCropToRoi(true);
+        return LevelSetUtility.getSegImage(embryo.getOriginal(), parameters);
+    }
+
+    /**
+     * Same as <code>levelSetSingleRoi</code>, but evolved by <code>NarrowBandActiveContours</code>
+     */
+    @Benchmark
+    public ImagePlus levelSetSingleRoiNarrowBand() {
+        LevelSetParameters parameters = new LevelSetParameters(levelSetParameters);
+        parameters.setNarrowBand(true);
+        return LevelSetUtility.getSegImage(embryo.getOriginal(), parameters);
+    }
+
+    /**
+     * Picking the level set parameters for every cell of the image
+     */
+    @Benchmark
+    public double parametersForCurveEvolution() {
+        ImagePlus original = embryo.getOriginal();
+        double sum = 0;
+        for (Roi roi : interiorRois) {
+            LevelSetParameters parameters = new LevelSetParameters();
+            parameters.setParametersForCurveEvolution(original, roi);
+            sum += parameters.getConvergence();
+        }
+        return sum;
+    }
+
+    /**
+     * Same as <code>parametersForCurveEvolution</code>, with the statistics taken from summed-area tables(including building them)
+     */
+    @Benchmark
+    public double parametersForCurveEvolutionIntegral() {
+        IntegralImage integralImage = new IntegralImage(embryo.getOriginal().getProcessor());
+        double sum = 0;
+        for (Roi roi : interiorRois) {
+            LevelSetParameters parameters = new LevelSetParameters();
+            parameters.setParametersForCurveEvolution(integralImage, roi);
+            sum += parameters.getConvergence();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public Roi[] removeOverlappingRois() {
+        return LevelSetStage.removeOverlappingRois(overlappingRois);
+    }
+
+    /**
+     * Morphological clean up of a thresholded image
+     */
+    @Benchmark
+    public ImagePlus thresholdMorph(Copies copies) {
+        return ThresholdingStage.morph(copies.thresholdImage);
+    }
+
+    /**
+     * Threshold and clean up of a probability map
+     */
+    @Benchmark
+    public ImagePlus thresholdingStage(Copies copies) {
+        return ThresholdingStage.apply(copies.probabilityMap, 0.0, 0.6);
+    }
+
+    @Benchmark
+    public ImagePlus boundryDetectionStage() {
+        return EmbryoBoundryDetection.apply(embryo.getOriginal());
+    }
+
+    @Benchmark
+    public ImagePlus boundryDetectionPyramid() {
+        return EmbryoBoundryDetection.apply(embryo.getOriginal(), 4);
+    }
+
+    @Benchmark
+    public ImagePlus levelSetStage(Copies copies) {
+        return LevelSetStage.apply(embryo.getOriginal(), copies.thresholdImage, copies.cellMask);
+    }
+
+    /**
+     * Everything after the classifier for one frame, in the order <code>PipelineRunner</code> does it
+     */
+    @Benchmark
+    public ImagePlus pipeline(Copies copies) {
+        ImagePlus thresholdImage = ThresholdingStage.apply(copies.probabilityMap, 0.0, 0.6);
+        ImagePlus cellMask = EmbryoBoundryDetection.apply(embryo.getOriginal());
+        return LevelSetStage.apply(embryo.getOriginal(), thresholdImage, cellMask);
+    }
+}
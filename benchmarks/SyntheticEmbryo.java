@@ -0,0 +1,164 @@
+import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates embryo-like test images so that the stages can be benchmarked without real microscopy data.
+ *
+ * The embryo is an ellipse in the middle of the image packed with round cells. Every cell has a bright membrane
+ * and a darker interior, and some gaussian noise is added on top. Along with the original image, the matching
+ * inputs of the later stages are generated, i.e. what the earlier stages would have produced for it:
+ *  - probability map: low inside the cells, high on membranes and outside (same as <code>WekaSegmentaionStage</code>)
+ *  - threshold image: black inside the cells (same as <code>ThresholdingStage</code>)
+ *  - cell mask: black inside the embryo (same as <code>EmbryoBoundryDetection</code>)
+ *
+ * The same <code>seed</code> always gives the same images.
+ */
+public class SyntheticEmbryo {
+
+    private static final int BACKGROUND = 40;
+    private static final int CYTOPLASM = 110;
+    private static final int MEMBRANE = 200;
+    private static final double NOISE = 8;
+    private static final int MEMBRANE_WIDTH = 2;
+
+    private final int size;
+    private final List<double[]> cells = new ArrayList<double[]>();
+    private final double cellRadius;
+    private final double embryoA;
+    private final double embryoB;
+
+    private ImagePlus original;
+    private ImagePlus probabilityMap;
+    private ImagePlus thresholdImage;
+    private ImagePlus cellMask;
+
+    /**
+     * @param size          width and height of the generated images
+     * @param numberOfCells number of cells to be placed inside the embryo. Fewer cells are placed if they don't fit
+     * @param seed          seed for cell jitter and noise
+     */
+    public SyntheticEmbryo(int size, int numberOfCells, long seed) {
+        this.size = size;
+        this.embryoA = 0.4 * size;
+        this.embryoB = 0.3 * size;
+
+        //cells are put on a jittered grid that covers the embryo
+        double embryoArea = Math.PI * embryoA * embryoB;
+        double spacing = Math.sqrt(embryoArea / numberOfCells);
+        this.cellRadius = spacing * 0.45;
+
+        Random random = new Random(seed);
+        double centre = size / 2.0;
+        for (double y = centre - embryoB + spacing / 2; y < centre + embryoB && cells.size() < numberOfCells; y += spacing) {
+            for (double x = centre - embryoA + spacing / 2; x < centre + embryoA && cells.size() < numberOfCells; x += spacing) {
+                double cx = x + (random.nextDouble() - 0.5) * spacing * 0.1;
+                double cy = y + (random.nextDouble() - 0.5) * spacing * 0.1;
+                if (insideEmbryo(cx, cy, cellRadius)) {
+                    cells.add(new double[]{cx, cy});
+                }
+            }
+        }
+
+        render(random);
+    }
+
+    private boolean insideEmbryo(double x, double y, double margin) {
+        double dx = (x - size / 2.0) / Math.max(1, embryoA - margin);
+        double dy = (y - size / 2.0) / Math.max(1, embryoB - margin);
+        return dx * dx + dy * dy <= 1;
+    }
+
+    private void render(Random random) {
+        ByteProcessor originalProcessor = new ByteProcessor(size, size);
+        FloatProcessor probabilityProcessor = new FloatProcessor(size, size);
+        ByteProcessor thresholdProcessor = new ByteProcessor(size, size);
+        ByteProcessor maskProcessor = new ByteProcessor(size, size);
+
+        byte[] originalPixels = (byte[]) originalProcessor.getPixels();
+        float[] probabilityPixels = (float[]) probabilityProcessor.getPixels();
+        byte[] thresholdPixels = (byte[]) thresholdProcessor.getPixels();
+        byte[] maskPixels = (byte[]) maskProcessor.getPixels();
+
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int i = y * size + x;
+                boolean inEmbryo = insideEmbryo(x, y, 0);
+
+                //distance to the nearest cell centre decides membrane/interior
+                double nearest = Double.MAX_VALUE;
+                if (inEmbryo) {
+                    for (double[] cell : cells) {
+                        double dx = x - cell[0], dy = y - cell[1];
+                        nearest = Math.min(nearest, dx * dx + dy * dy);
+                    }
+                    nearest = Math.sqrt(nearest);
+                }
+                boolean interior = nearest < cellRadius - MEMBRANE_WIDTH;
+                boolean membrane = !interior && nearest < cellRadius + MEMBRANE_WIDTH;
+
+                double value = !inEmbryo ? BACKGROUND : membrane ? MEMBRANE : CYTOPLASM;
+                value += random.nextGaussian() * NOISE;
+                originalPixels[i] = (byte) Math.max(0, Math.min(255, (int) Math.round(value)));
+
+                probabilityPixels[i] = interior ? 0.1f + 0.2f * random.nextFloat() : 0.7f + 0.3f * random.nextFloat();
+                thresholdPixels[i] = (byte) (interior ? 0 : 255);
+                maskPixels[i] = (byte) (inEmbryo ? 0 : 255);
+            }
+        }
+
+        original = new ImagePlus("synthetic", originalProcessor);
+        probabilityMap = new ImagePlus("synthetic-probability", probabilityProcessor);
+        thresholdImage = new ImagePlus("synthetic-threshold", thresholdProcessor);
+        cellMask = new ImagePlus("synthetic-mask", maskProcessor);
+    }
+
+    /**
+     * @return the number of cells that were actually placed
+     */
+    public int getNumberOfCells() {
+        return cells.size();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Rois around every cell, <code>grow</code> px larger than the cell. With a positive <code>grow</code> neighbouring rois overlap.
+     */
+    public Roi[] getCellRois(double grow) {
+        Roi[] rois = new Roi[cells.size()];
+        double r = cellRadius + grow;
+        for (int i = 0; i < rois.length; i++) {
+            double[] cell = cells.get(i);
+            rois[i] = new OvalRoi(cell[0] - r, cell[1] - r, 2 * r, 2 * r);
+        }
+        return rois;
+    }
+
+    /**
+     * The generated images are shared, so callers that change them in place should use <code>duplicate()</code>
+     */
+    public ImagePlus getOriginal() {
+        return original;
+    }
+
+    public ImagePlus getProbabilityMap() {
+        return probabilityMap;
+    }
+
+    public ImagePlus getThresholdImage() {
+        return thresholdImage;
+    }
+
+    public ImagePlus getCellMask() {
+        return cellMask;
+    }
+}
@@ -0,0 +1,76 @@
+import ij.IJ;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <code>AsyncWriter</code> encodes and writes the results of a stage on background threads, so the thread that made a result can go on
+ * with the next item right away.
+ * At most <code>capacity</code> results are waiting or being written. When that many are pending, <code>submit</code> waits, so results
+ * never pile up in memory when the disk is slower than the stage.
+ * A write that fails is logged and counted, the other writes go on.
+ *
+ * @see LevelSetStage#setWriterThreads(int)
+ */
+public class AsyncWriter {
+
+    /**
+     * Writes one result, eg. saves an image and records it in the manifest
+     */
+    public interface Write {
+        void write() throws Exception;
+    }
+
+    private final ExecutorService executorService;
+    private final Semaphore pending;
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * @param numberOfThreads number of results written at the same time
+     * @param capacity        maximum number of results waiting or being written
+     */
+    public AsyncWriter(int numberOfThreads, int capacity) {
+        this.executorService = Executors.newFixedThreadPool(Math.max(1, numberOfThreads));
+        this.pending = new Semaphore(Math.max(1, capacity));
+    }
+
+    /**
+     * Queues a write, waiting while <code>capacity</code> writes are pending
+     * @param name  name of the result, for the log
+     * @param write the write
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void submit(final String name, final Write write) throws InterruptedException {
+        long start = Metrics.start();
+        pending.acquire();
+        Metrics.stop("async_write_wait_seconds", start);
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write.write();
+                } catch (Throwable throwable) {
+                    IJ.log("Failed to write " + name + ": " + throwable);
+                    Metrics.increment("async_write_failures");
+                    failures.incrementAndGet();
+                } finally {
+                    pending.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until all the queued writes are done and stops the threads
+     * @return number of writes that failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int close() throws InterruptedException {
+        executorService.shutdown();
+        executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return failures.get();
+    }
+}
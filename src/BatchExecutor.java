@@ -0,0 +1,332 @@
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>BatchExecutor</code> processes the files(or any other items) of a stage on a pool of threads.
+ * At most <code>maximumInFlight</code> items are taken from the input at once, so that only a bounded number of images is in memory.
+ * If a <code>MemoryBudget</code> is set, an item is also held back until its estimated footprint fits in the budget.
+ * An item that fails is recorded and logged, the rest of the batch goes on.
+ * If a <code>WorkQueue</code> is set, the items are shared with other processes: only the items this process claims are processed.
+ *
+ * @param <T> type of the items, usually <code>File</code>
+ */
+public class BatchExecutor<T> {
+
+    /**
+     * names files in a <code>WorkQueue</code> by their file name
+     */
+    public static final ItemName<File> FILE_NAME = new ItemName<File>() {
+        @Override
+        public String getName(File file) {
+            return file.getName();
+        }
+    };
+
+    private final int numberOfThreads;
+    private final int maximumInFlight;
+
+    /**
+     * if set, an item is started only when its estimated footprint fits in this budget
+     */
+    private MemoryBudget memoryBudget;
+    private Footprint<T> footprint;
+
+    /**
+     * if set, an item is processed only if this process could claim it
+     */
+    private WorkQueue workQueue;
+    private ItemName<T> itemName;
+
+    /**
+     * @param numberOfThreads number of items processed at the same time. 1 or less processes the items on the calling thread
+     */
+    public BatchExecutor(int numberOfThreads) {
+        this(numberOfThreads, numberOfThreads);
+    }
+
+    /**
+     * @param numberOfThreads number of items processed at the same time. 1 or less processes the items on the calling thread
+     * @param maximumInFlight maximum number of items that are being processed or waiting for a thread
+     */
+    public BatchExecutor(int numberOfThreads, int maximumInFlight) {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+        this.maximumInFlight = Math.max(this.numberOfThreads, maximumInFlight);
+    }
+
+    /**
+     * Processes all the items and waits until all of them are done
+     * @param items items to be processed
+     * @param task work done on each item
+     * @return items that failed, in no particular order. Empty if all of them succeeded
+     */
+    public List<Failure<T>> execute(Iterable<T> items, final Task<T> task) {
+        List<Failure<T>> failures = executeOnce(items, task);
+        if (workQueue == null) {
+            return failures;
+        }
+        //items claimed by other processes are taken over if those processes crash, so wait until all of them are finished
+        try {
+            while (hasPendingItems(items)) {
+                Thread.sleep(workQueue.getRetryInterval());
+                failures.addAll(executeOnce(items, task));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workQueue.close();
+        }
+        return failures;
+    }
+
+    /*
+    one pass over the items
+     */
+    private List<Failure<T>> executeOnce(Iterable<T> items, final Task<T> task) {
+        final List<Failure<T>> failures = Collections.synchronizedList(new ArrayList<Failure<T>>());
+
+        if (numberOfThreads == 1) {
+            try {
+                for (T item : items) {
+                    if (!claim(item)) {
+                        continue;
+                    }
+                    long bytes = admit(item);
+                    try {
+                        process(item, task, failures);
+                    } finally {
+                        dismiss(bytes);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return failures;
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+        final Semaphore inFlight = new Semaphore(maximumInFlight);
+        try {
+            for (final T item : items) {
+                if (!claim(item)) {
+                    continue;
+                }
+                inFlight.acquire();
+                final long bytes;
+                try {
+                    bytes = admit(item);
+                } catch (InterruptedException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                executorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            process(item, task, failures);
+                        } finally {
+                            dismiss(bytes);
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+            executorService.shutdown();
+            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        return failures;
+    }
+
+    /*
+    waits until the item fits in the memory budget. Returns the number of bytes reserved for it
+     */
+    private long admit(T item) throws InterruptedException {
+        if (memoryBudget == null) {
+            return 0;
+        }
+        long bytes = footprint.estimate(item);
+        long start = Metrics.start();
+        memoryBudget.acquire(bytes);
+        Metrics.stop("batch_memory_wait_seconds", start);
+        return bytes;
+    }
+
+    private void dismiss(long bytes) {
+        if (memoryBudget != null) {
+            memoryBudget.release(bytes);
+        }
+    }
+
+    private void process(T item, Task<T> task, List<Failure<T>> failures) {
+        boolean done = false;
+        try {
+            task.process(item);
+            done = true;
+        } catch (Throwable throwable) {
+            IJ.log("Failed to process " + item + ": " + throwable);
+            Metrics.increment("batch_failures");
+            failures.add(new Failure<T>(item, throwable));
+        }
+        if (workQueue != null) {
+            String name = itemName.getName(item);
+            try {
+                if (done) {
+                    workQueue.complete(name);
+                } else {
+                    workQueue.fail(name);
+                }
+            } catch (IOException e) {
+                IJ.log("Not able to mark " + name + " as finished: " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+    true if the item is not shared, or this process claimed it
+     */
+    private boolean claim(T item) {
+        if (workQueue == null) {
+            return true;
+        }
+        try {
+            return workQueue.claim(itemName.getName(item));
+        } catch (IOException e) {
+            IJ.log("Not able to claim " + item + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean hasPendingItems(Iterable<T> items) {
+        for (T item : items) {
+            if (workQueue.isPending(itemName.getName(item))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Logs a summary of the items of a stage that failed, each of them was already logged when it failed
+     * @param stage name of the stage, for the log
+     * @param failures as returned by <code>execute</code>
+     * @return number of items that failed
+     */
+    public static <T> int report(String stage, List<Failure<T>> failures) {
+        if (!failures.isEmpty()) {
+            StringBuilder items = new StringBuilder();
+            for (Failure<T> failure : failures) {
+                items.append(items.length() == 0 ? "" : ", ").append(failure.getItem());
+            }
+            IJ.log(stage + ": " + failures.size() + " failed(" + items + ")");
+        }
+        return failures.size();
+    }
+
+    /**
+     * Lists the files a stage should process: regular files of <code>dir</code>, sorted by name.
+     * Files whose name starts with "." (eg. the manifest written by <code>BatchManifest</code>) are left out.
+     * @param dir input folder
+     * @return sorted list of input files, empty if <code>dir</code> can not be read
+     */
+    public static List<File> listFiles(String dir) {
+        List<File> files = new ArrayList<File>();
+        File[] children = new File(dir).listFiles();
+        if (children == null) {
+            IJ.log("Not able to list " + dir);
+            return files;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isFile() && !child.getName().startsWith(".")) {
+                files.add(child);
+            }
+        }
+        return files;
+    }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    public int getMaximumInFlight() {
+        return maximumInFlight;
+    }
+
+    /**
+     * Items are started only when their footprint fits in <code>memoryBudget</code>
+     * @param memoryBudget budget shared with other executors, eg. <code>MemoryBudget.getDefault()</code>. null for no budget
+     * @param footprint estimates the number of bytes needed for processing an item
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget, Footprint<T> footprint) {
+        this.memoryBudget = memoryBudget;
+        this.footprint = footprint;
+    }
+
+    /**
+     * Shares the items with other processes that use the same queue
+     * @param workQueue queue shared by the processes
+     * @param itemName  name of an item in the queue, the same in every process(eg. the name of the input file)
+     */
+    public void setWorkQueue(WorkQueue workQueue, ItemName<T> itemName) {
+        this.workQueue = workQueue;
+        this.itemName = itemName;
+    }
+
+    /**
+     * Work done on one item
+     * @param <T> type of the item
+     */
+    public interface Task<T> {
+        void process(T item) throws Exception;
+    }
+
+    /**
+     * Name of an item in a <code>WorkQueue</code>
+     * @param <T> type of the item
+     */
+    public interface ItemName<T> {
+        String getName(T item);
+    }
+
+    /**
+     * Estimates the memory needed for processing one item
+     * @param <T> type of the item
+     */
+    public interface Footprint<T> {
+        long estimate(T item);
+    }
+
+    /**
+     * An item that failed and the reason for it
+     * @param <T> type of the item
+     */
+    public static class Failure<T> {
+        private final T item;
+        private final Throwable cause;
+
+        public Failure(T item, Throwable cause) {
+            this.item = item;
+            this.cause = cause;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public Throwable getCause() {
+            return cause;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+import ij.IJ;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <code>BatchManifest</code> remembers, for every output file of a stage, a hash of the input(s) it was made from and a hash of the
+ * parameters(or model) used for making it. When a stage is run again on the same folder, outputs whose hashes still match are skipped.
+ *
+ * The manifest is kept in the output folder as the file <code>FILE_NAME</code>. Every finished output appends one line to it,
+ * so an interrupted batch keeps the record of the outputs it did finish. Stages skip files whose name starts with "."
+ * when listing their input, so the manifest is never taken as an image.
+ *
+ * When several processes work on the same output folder(see <code>WorkQueue</code>), each of them appends to its own journal
+ * <code>FILE_NAME-workerId</code>, so no two processes write the same file. Journals are read together with the manifest and are
+ * folded into it by <code>merge</code> once all the processes are done.
+ *
+ * @see BatchExecutor#listFiles(String)
+ */
+public class BatchManifest {
+
+    public static final String FILE_NAME = ".manifest";
+
+    /**
+     * if set, this process appends to the journal <code>FILE_NAME-workerId</code> instead of the manifest
+     */
+    private static volatile String workerId;
+
+    private final File outputDir;
+    private final File manifestFile;
+
+    /**
+     * output file name to "inputHash parameterHash"
+     */
+    private final Map<String, String> entries = new HashMap<String, String>();
+
+    /**
+     * Loads the manifest of <code>outputDir</code>, if there is one
+     * @param outputDir output folder of a stage
+     */
+    public BatchManifest(String outputDir) {
+        this.outputDir = new File(outputDir);
+        this.manifestFile = new File(outputDir, FILE_NAME);
+        load();
+    }
+
+    /**
+     * @param workerId name of this process among the processes that share the output folders, null for a process that works alone
+     */
+    public static void setWorkerId(String workerId) {
+        BatchManifest.workerId = workerId;
+    }
+
+    /**
+     * Folds the journals of the workers into the manifest of <code>outputDir</code>. To be called once all the workers are done
+     * @param outputDir output folder of a stage
+     * @return false if the manifest could not be written, the journals are then kept
+     */
+    public static boolean merge(String outputDir) {
+        return new BatchManifest(outputDir).compact();
+    }
+
+    /**
+     * @param outputName name of the output file in the output folder
+     * @param inputHash hash of the input file(s), see <code>hash(File...)</code>
+     * @param parameterHash hash of the parameters or model, see <code>hash(String)</code>
+     * @return true if the output exists and was made from the same input with the same parameters
+     */
+    public synchronized boolean isUpToDate(String outputName, String inputHash, String parameterHash) {
+        String entry = entries.get(outputName);
+        return entry != null && entry.equals(inputHash + " " + parameterHash) && new File(outputDir, outputName).isFile();
+    }
+
+    /**
+     * Records a finished output and appends it to the manifest file
+     * @param outputName name of the output file in the output folder
+     * @param inputHash hash of the input file(s)
+     * @param parameterHash hash of the parameters or model
+     */
+    public synchronized void record(String outputName, String inputHash, String parameterHash) {
+        entries.put(outputName, inputHash + " " + parameterHash);
+        File file = workerId == null ? manifestFile : new File(outputDir, FILE_NAME + "-" + workerId);
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file, true))) {
+            writer.println(inputHash + " " + parameterHash + " " + outputName);
+        } catch (IOException e) {
+            IJ.log("Not able to update " + manifestFile + ": " + e.getMessage());
+        }
+    }
+
+    /*
+    reads the manifest and the journals of the workers. Later lines replace earlier lines of the same output.
+    If there are many replaced lines, the manifest is written again with only the current ones(not by workers, they share it)
+     */
+    private void load() {
+        int lines = 0;
+        List<File> files = new ArrayList<File>();
+        files.add(manifestFile);
+        files.addAll(getJournals());
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ", 3);
+                    if (fields.length == 3) {
+                        entries.put(fields[2], fields[0] + " " + fields[1]);
+                        lines++;
+                    }
+                }
+            } catch (IOException e) {
+                IJ.log("Not able to read " + file + ": " + e.getMessage());
+                return;
+            }
+        }
+        if (workerId == null && lines > 2 * entries.size()) {
+            compact();
+        }
+    }
+
+    /*
+    journals of the workers, sorted by name
+     */
+    private List<File> getJournals() {
+        List<File> journals = new ArrayList<File>();
+        File[] files = outputDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(FILE_NAME + "-") && file.isFile()) {
+                    journals.add(file);
+                }
+            }
+        }
+        Collections.sort(journals);
+        return journals;
+    }
+
+    private boolean compact() {
+        File temp = new File(outputDir, FILE_NAME + ".tmp");
+        try {
+            try (PrintWriter writer = new PrintWriter(new FileWriter(temp))) {
+                for (Map.Entry<String, String> entry : entries.entrySet()) {
+                    writer.println(entry.getValue() + " " + entry.getKey());
+                }
+            }
+            Files.move(temp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            IJ.log("Not able to compact " + manifestFile + ": " + e.getMessage());
+            return false;
+        }
+        //their lines are in the manifest now
+        for (File journal : getJournals()) {
+            journal.delete();
+        }
+        return true;
+    }
+
+    /**
+     * @param files files to be hashed, in this order
+     * @return SHA-256 of the content of the files, as hex
+     * @throws IOException if a file can not be read
+     */
+    public static String hash(File... files) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[1 << 16];
+        for (File file : files) {
+            try (InputStream inputStream = new FileInputStream(file)) {
+                int read;
+                while ((read = inputStream.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param text eg. a description of the parameters of a stage
+     * @return SHA-256 of the text, as hex
+     */
+    public static String hash(String text) {
+        return toHex(newDigest().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder stringBuilder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            stringBuilder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,158 @@
+import ij.IJ;
+import trainableSegmentation.WekaSegmentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <code>ClassifierCache</code> keeps the classifiers loaded by <code>WekaSegmentation</code>, so that a model file is read only once per process.
+ * Loading a model is usually slower than applying it on an image.
+ *
+ * Models are identified by the canonical path and the last modification time of the model file, so a model that is changed on disk is loaded again.
+ * When more than <code>maximumSize</code> models are loaded, the least recently used one is dropped.
+ *
+ * It is safe to call <code>get</code> from several threads. A model requested by several threads at the same time is loaded only once.
+ * The returned <code>WekaSegmentation</code> is shared by all its users, so it should only be used for applying the classifier.
+ *
+ * @see WekaSegmentaionStage
+ */
+public class ClassifierCache {
+
+    /**
+     * maximum number of models kept in memory
+     */
+    private static int maximumSize = 2;
+
+    /**
+     * loaded(or being loaded) models in access order
+     */
+    private static final LinkedHashMap<String, FutureTask<WekaSegmentation>> cache = new LinkedHashMap<String, FutureTask<WekaSegmentation>>(16, 0.75f, true);
+
+    private ClassifierCache() {
+    }
+
+    /**
+     * Returns the <code>WekaSegmentation</code> with the classifier at <code>classifierModelFileAddress</code> loaded in it.
+     *
+     * @param classifierModelFileAddress address of the classifier or model
+     * @return WekaSegmentation with loaded classifier or null if the classifier could not be loaded
+     */
+    public static WekaSegmentation get(final String classifierModelFileAddress) {
+        if (classifierModelFileAddress == null) {
+            IJ.error("No classifier model specified");
+            return null;
+        }
+
+        File modelFile = new File(classifierModelFileAddress);
+        String path = getCanonicalPath(modelFile);
+        String key = path + "@" + modelFile.lastModified();
+
+        FutureTask<WekaSegmentation> loader;
+        boolean isNew = false;
+        synchronized (cache) {
+            loader = cache.get(key);
+            if (loader == null) {
+                removeEntriesOf(path);
+                loader = new FutureTask<WekaSegmentation>(new Callable<WekaSegmentation>() {
+                    @Override
+                    public WekaSegmentation call() {
+                        WekaSegmentation wekaSegmentation = new WekaSegmentation();
+                        if (!wekaSegmentation.loadClassifier(classifierModelFileAddress)) {
+                            throw new IllegalArgumentException("Not able to load classifier: " + classifierModelFileAddress);
+                        }
+                        return wekaSegmentation;
+                    }
+                });
+                cache.put(key, loader);
+                evict();
+                isNew = true;
+            }
+        }
+
+        //loading is done outside the lock, so that other models can be used meanwhile
+        if (isNew) {
+            long start = Metrics.start();
+            loader.run();
+            Metrics.stop("classifier_load_seconds", start);
+        } else {
+            Metrics.increment("classifier_cache_hits");
+        }
+
+        try {
+            return loader.get();
+        } catch (ExecutionException e) {
+            synchronized (cache) {
+                if (cache.get(key) == loader) {
+                    cache.remove(key);
+                }
+            }
+            IJ.error(e.getCause().getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Drops all the loaded models
+     */
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public static int getMaximumSize() {
+        synchronized (cache) {
+            return maximumSize;
+        }
+    }
+
+    /**
+     * @param maximumSize maximum number of models kept in memory. Least recently used models are dropped first.
+     */
+    public static void setMaximumSize(int maximumSize) {
+        synchronized (cache) {
+            ClassifierCache.maximumSize = Math.max(1, maximumSize);
+            evict();
+        }
+    }
+
+    /*
+    drops least recently used entries. Must be called with the lock held
+     */
+    private static void evict() {
+        Iterator<String> iterator = cache.keySet().iterator();
+        while (cache.size() > maximumSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /*
+    drops entries of an older version of the model file. Must be called with the lock held
+     */
+    private static void removeEntriesOf(String path) {
+        Iterator<Map.Entry<String, FutureTask<WekaSegmentation>>> iterator = cache.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getKey().startsWith(path + "@")) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static String getCanonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+}
@@ -4,12 +4,18 @@ import ij.gui.GenericDialog;
 import ij.gui.Roi;
 import ij.io.DirectoryChooser;
 import ij.io.FileSaver;
+import ij.plugin.RoiEnlarger;
+import ij.plugin.RoiScaler;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
 
 /**
  * <code>EmbryoBoundryDetection</code> is used to find the outer boundry of the embryo in an image.
@@ -19,6 +25,56 @@ public class EmbryoBoundryDetection {
     private String outputDir;
     private static final String title = "Boundry Detection";
 
+    /**
+     * number of images of the size of the input that are alive while the boundry of an image is detected(used for the memory budget)
+     */
+    private static final int WORKING_COPIES = 8;
+
+    /**
+     * number of images processed at the same time by <code>apply()</code>
+     */
+    private int numberOfThreads = 1;
+
+    /**
+     * if true, <code>apply()</code> skips the images whose output is up to date according to the manifest of <code>outputDir</code>
+     */
+    private boolean incremental = true;
+
+    /**
+     * describes the parameters of <code>getWholeCellMask</code>. Change it when they change, so that old masks are made again
+     */
+    private static final String PARAMETERS = "boundry 1 1 3 3 0.0030 1.0 1.0 1 true 50 100";
+
+    /**
+     * number of steps(of <code>REFINE_STEP_ITERATION</code> iterations) of the full resolution refinement after the pyramid
+     */
+    private static final int REFINE_STEPS = 10;
+    private static final int REFINE_STEP_ITERATION = 50;
+
+    /**
+     * convergence and grey_tol of the refinement, as <code>NarrowBandActiveContours</code> reads them: the contour has only a few px to go
+     * on an embryo that covers most of the image, so it has settled once its area changes by less than 0.1% in a step, and it stops
+     * at px more than 2 standard deviations away from the background it started on
+     */
+    private static final double REFINE_CONVERGENCE = 0.001;
+    private static final double REFINE_GREY_TOL = 2.0;
+
+    /**
+     * a coarse contour that covers less than this fraction of the image is taken as lost, and the image is done at full resolution
+     */
+    private static final double MINIMUM_COARSE_AREA = 0.01;
+
+    /**
+     * if more than 1, the boundry is first found on the image shrunk by this factor and then refined at full resolution
+     * @see #getWholeCellMaskPyramid(ImagePlus, Roi, int)
+     */
+    private int pyramidFactor = 1;
+
+    /**
+     * if not null, the images are shared with other processes and only the ones this process claims are done by <code>apply()</code>
+     */
+    private WorkQueue workQueue;
+
     /**
      * Constructor.
      *
@@ -47,27 +103,125 @@ public class EmbryoBoundryDetection {
      * @return An ImagePlus object of the result.
      */
     public static ImagePlus apply(ImagePlus imagePlus) {
+        return apply(imagePlus, 1);
+    }
+
+    /**
+     * Same as <code>apply(ImagePlus)</code>, but the boundry is first found on the image shrunk by <code>pyramidFactor</code>
+     * @param imagePlus Original Image(the microscopy image)
+     * @param pyramidFactor 1 or less works at full resolution only
+     * @return An ImagePlus object of the result.
+     */
+    public static ImagePlus apply(ImagePlus imagePlus, int pyramidFactor) {
         if (imagePlus == null) {
             IJ.error("Unable to read image");
         }
         //TODO: Add detection of not-data-fine case and processing
+        if (pyramidFactor > 1) {
+            return getWholeCellMaskPyramid(imagePlus, new Roi(1, 1, imagePlus.getWidth() - 3, imagePlus.getHeight() - 3), pyramidFactor);
+        }
         return getWholeCellMask(imagePlus, true);
     }
 
     /**
      * Loops over all the images in the <code>inputDir</code> and calls the function <code>apply(ImagePlus)</code> on each image and saves the output in <code>outputDir</code>
+     * @return number of images that failed
      */
-    public void apply() {
-        File inputImagesFolder = new File(inputDir);
-        for (File inputImage : inputImagesFolder.listFiles()) {
-            if (inputImage.isFile()) {
-                ImagePlus imagePlus = new ImagePlus(inputImage.getAbsolutePath());
-                imagePlus = apply(imagePlus);
-                new FileSaver(imagePlus).saveAsJpeg(outputDir + File.separator + inputImage.getName());
+    public int apply() {
+        List<File> inputImages = BatchExecutor.listFiles(inputDir);
+        final BatchManifest batchManifest = new BatchManifest(outputDir);
+        final String parameterHash = BatchManifest.hash(pyramidFactor > 1 ? PARAMETERS + " pyramid " + pyramidFactor + " " + REFINE_CONVERGENCE + " " + REFINE_GREY_TOL : PARAMETERS);
+
+        BatchExecutor<File> batchExecutor = new BatchExecutor<File>(numberOfThreads);
+        batchExecutor.setMemoryBudget(MemoryBudget.getDefault(), new BatchExecutor.Footprint<File>() {
+            @Override
+            public long estimate(File inputImage) {
+                return MemoryBudget.estimate(inputImage, WORKING_COPIES);
             }
+        });
+        if (workQueue != null) {
+            batchExecutor.setWorkQueue(workQueue, BatchExecutor.FILE_NAME);
         }
+        List<BatchExecutor.Failure<File>> failures = batchExecutor.execute(inputImages, new BatchExecutor.Task<File>() {
+            @Override
+            public void process(File inputImage) throws IOException {
+                String inputHash = BatchManifest.hash(inputImage);
+                if (incremental && batchManifest.isUpToDate(inputImage.getName(), inputHash, parameterHash)) {
+                    Metrics.increment("boundry_skipped");
+                    return;
+                }
+                if (!apply(inputImage)) {
+                    throw new IOException("Not able to save the boundry of " + inputImage.getName());
+                }
+                batchManifest.record(inputImage.getName(), inputHash, parameterHash);
+            }
+        });
+        return BatchExecutor.report("Boundry Detection", failures);
+    }
+
+    /**
+     * Calls the function <code>apply(ImagePlus)</code> on a single image and saves the output in <code>outputDir</code>
+     * @param inputImage File object that points to the original image
+     * @return true if the result was written
+     */
+    public boolean apply(File inputImage) {
+        long start = Metrics.start();
+        ImagePlus imagePlus = new ImagePlus(inputImage.getAbsolutePath());
+        Metrics.stop("boundry_read_seconds", start);
+        start = Metrics.start();
+        imagePlus = apply(imagePlus, pyramidFactor);
+        Metrics.stop("boundry_process_seconds", start);
+        start = Metrics.start();
+        boolean saved = new FileSaver(imagePlus).saveAsJpeg(outputDir + File.separator + inputImage.getName());
+        Metrics.stop("boundry_write_seconds", start);
+        Metrics.increment(saved ? "boundry_images" : "boundry_failures");
+        return saved;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @param incremental if true, <code>apply()</code> skips the images whose output is up to date. If false, all images are processed again
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    /**
+     * @param numberOfThreads number of images processed at the same time by <code>apply()</code>
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+
+    public WorkQueue getWorkQueue() {
+        return workQueue;
+    }
+
+    /**
+     * @param workQueue queue shared with other processes working on the same folders, null to do all the images
+     */
+    public void setWorkQueue(WorkQueue workQueue) {
+        this.workQueue = workQueue;
+    }
+
+    public int getPyramidFactor() {
+        return pyramidFactor;
     }
 
+    /**
+     * @param pyramidFactor if more than 1, the boundry is first found on the image shrunk by this factor. 1 works at full resolution only
+     */
+    public void setPyramidFactor(int pyramidFactor) {
+        this.pyramidFactor = pyramidFactor;
+    }
 
     public static ImagePlus getWholeCellMask(ImagePlus imagePlus, boolean isDataFine) {
         //TODO: create a case for isDataFine thing
@@ -80,9 +234,86 @@ public class EmbryoBoundryDetection {
     }
 
     public static ImagePlus getWholeCellMask(ImagePlus imagePlus, Roi roi) {
-        return LevelSetUtility.getSegImage(imagePlus, roi, 0.0030, 1.0, 1.0, 1, true, 50, 100);
+        //recorded as boundry_*, so that the levelset_* metrics are those of the cells only
+        return LevelSetUtility.getSegImage(imagePlus, roi, 0.0030, 1.0, 1.0, 1, true, false, StepSchedule.fixed(50, 100), "boundry");
+    }
+
+    /**
+     * Coarse to fine version of <code>getWholeCellMask(ImagePlus, Roi)</code>.
+     * The contour starts at the edges of the image and has to travel hundreds of px to reach the embryo. On the image shrunk by
+     * <code>factor</code> it travels <code>factor</code> times less, and every iteration costs <code>factor * factor</code> times less.
+     * The coarse contour is then scaled back, grown a little so that it lies outside the embryo again, and refined with a short
+     * narrow band evolution at full resolution.
+     * If the coarse contour is lost(nearly empty), the image is done at full resolution only.
+     * The refined mask gets the px values and LUT of the coarse mask of <code>ActiveContours</code>, so it can be used like the mask
+     * of <code>getWholeCellMask(ImagePlus, Roi)</code>, whatever <code>Prefs.blackBackground</code> is.
+     *
+     * @param imagePlus Original Image(the microscopy image)
+     * @param roi initial contour, in full resolution coordinates. It must leave out the corner px(0, 0)
+     * @param factor the image is shrunk by this factor for the coarse evolution
+     * @return same kind of mask as <code>getWholeCellMask(ImagePlus, Roi)</code>
+     */
+    public static ImagePlus getWholeCellMaskPyramid(ImagePlus imagePlus, Roi roi, int factor) {
+        int width = imagePlus.getWidth();
+        int height = imagePlus.getHeight();
+        int coarseWidth = width / factor;
+        int coarseHeight = height / factor;
+        if (coarseWidth < 8 || coarseHeight < 8) {
+            return getWholeCellMask(imagePlus, roi);
+        }
+
+        long start = Metrics.start();
+        //averaging, so that noise does not stop the contour at the coarse level
+        ImageProcessor coarseProcessor = imagePlus.getProcessor().resize(coarseWidth, coarseHeight, true);
+        ImagePlus coarseImage = new ImagePlus(imagePlus.getTitle(), coarseProcessor);
+        Roi coarseRoi = RoiScaler.scale(roi, 1.0 / factor, 1.0 / factor, false);
+        ImagePlus coarseMask = getWholeCellMask(coarseImage, coarseRoi);
+        //the corner px is outside the contour from the start, so it tells which value ActiveContours gave to the embryo
+        ImageProcessor coarseMaskProcessor = coarseMask.getProcessor();
+        int embryo = 255 - coarseMaskProcessor.get(0, 0);
+        Roi coarseContour = LevelSetUtility.selectPixels(coarseMaskProcessor, embryo);
+        Metrics.stop("boundry_coarse_seconds", start);
+
+        if (coarseContour == null || RoiStore.getArea(coarseContour) < MINIMUM_COARSE_AREA * coarseWidth * coarseHeight) {
+            Metrics.increment("boundry_pyramid_fallbacks");
+            return getWholeCellMask(imagePlus, roi);
+        }
+
+        start = Metrics.start();
+        //a coarse px covers factor px, so the scaled contour can be off by that much on either side
+        Roi contour = RoiScaler.scale(coarseContour, factor, factor, false);
+        contour = RoiEnlarger.enlarge(contour, factor + 1);
+        ImagePlus mask = LevelSetUtility.getSegImageNarrowBand(imagePlus, contour, REFINE_CONVERGENCE, 1.0, 1.0, REFINE_GREY_TOL, true,
+                StepSchedule.fixed(REFINE_STEPS, REFINE_STEP_ITERATION), "boundry", embryo);
+        mask.getProcessor().setColorModel(coarseMaskProcessor.getColorModel());
+        Metrics.stop("boundry_refine_seconds", start);
+        return mask;
     }
 
+    /**
+     * Reads the embryo out of a cell mask as made by <code>apply(ImagePlus)</code>, whatever its LUT and even after it was saved as JPEG.
+     * The contour starts 1 px inside the edges of the image, so the corner px is always outside the embryo: every px on the other side
+     * of the threshold than the corner belongs to the embryo.
+     *
+     * @param cellMask cell mask of an image
+     * @return binary image, 255 for the px of the embryo and 0 for the others
+     */
+    public static ImageProcessor getEmbryoRegion(ImagePlus cellMask) {
+        ImageProcessor mask = cellMask.getProcessor();
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        boolean outside = mask.getPixelValue(0, 0) > 127;
+        ByteProcessor region = new ByteProcessor(width, height);
+        byte[] pixels = (byte[]) region.getPixels();
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                if (mask.getPixelValue(x, y) > 127 != outside) {
+                    pixels[i] = (byte) 255;
+                }
+            }
+        }
+        return region;
+    }
 
     public static void main(String[] args) {
 //        EmbryoBoundryDetection obj = new EmbryoBoundryDetection("/home/sid/Study/GSOC/GSoc/src/data/Data Annotation/Orignal", "/home/sid/Study/GSOC/GSoc/src/data/Data Annotation/YetAnotherCellMask");
@@ -0,0 +1,326 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import trainableSegmentation.FeatureStack;
+import trainableSegmentation.FeatureStackArray;
+import trainableSegmentation.WekaSegmentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <code>FeatureCache</code> keeps the feature stacks of Weka Segmentation on disk, so that the filters are computed only once per image.
+ * Building the feature stack is most of the work of applying a classifier, and it only depends on the image and the feature settings,
+ * not on the classifier. So when several models are compared on the same images, only the first one computes the features.
+ *
+ * An entry is identified by the hash of the image file and the feature settings of the model(sigmas, enabled features, membrane settings
+ * and neighbourhood). When the files of the cache take more than <code>maximumBytes</code>, the least recently used ones are deleted.
+ * The last modification time of a file is its last use, so the order survives restarts.
+ *
+ * Layout of a file(all values are little endian):
+ * <ul>
+ * <li>int: magic number "EMFC"</li>
+ * <li>int: version</li>
+ * <li>int: width</li>
+ * <li>int: height</li>
+ * <li>int: number of slices of the image</li>
+ * <li>int: number of features per slice</li>
+ * <li>int: number of bytes of the labels</li>
+ * <li>padding up to <code>HEADER_SIZE</code> bytes</li>
+ * <li>labels of the features as UTF-8, separated by new lines and padded to a multiple of 4 bytes</li>
+ * <li>float32 features, slice after slice, feature after feature, row after row</li>
+ * </ul>
+ * Files are written to a temporary file with a unique name first and then renamed, so several threads(or processes) can share a cache folder.
+ * Weka needs the features in <code>float[]</code>s, so files are read with plain reads straight into them.
+ *
+ * @see WekaSegmentaionStage#setFeatureCache(FeatureCache)
+ */
+public class FeatureCache {
+
+    /**
+     * extension of the files of the cache
+     */
+    public static final String EXTENSION = ".fsc";
+
+    private static final int MAGIC = 0x454D4643;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    /**
+     * temporary files not written to for this long were left by a writer that died
+     */
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+    private final File directory;
+    private final long maximumBytes;
+
+    /**
+     * @param directory    folder of the cache, made if it does not exist
+     * @param maximumBytes maximum size of all the files of the cache
+     * @throws IOException if the folder can not be made
+     */
+    public FeatureCache(File directory, long maximumBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Not able to create " + directory);
+        }
+        this.directory = directory;
+        this.maximumBytes = maximumBytes;
+        deleteStaleTempFiles();
+    }
+
+    /**
+     * Returns the feature stacks of <code>imagePlus</code>, from the cache or computed(and then added to the cache).
+     * @param imagePlus        image to be classified
+     * @param imageHash        hash of the image file, eg. from <code>BatchManifest.hash</code>
+     * @param wekaSegmentation WekaSegmentation with the classifier loaded in it, for the feature settings
+     * @return one feature stack per slice of imagePlus, or null if they could not be computed
+     */
+    public FeatureStackArray getFeatures(ImagePlus imagePlus, String imageHash, WekaSegmentation wekaSegmentation) {
+        File file = new File(directory, getKey(imageHash, wekaSegmentation) + EXTENSION);
+        if (file.isFile()) {
+            try {
+                FeatureStackArray featureStackArray = read(file, wekaSegmentation);
+                //marks the entry as used
+                file.setLastModified(System.currentTimeMillis());
+                Metrics.increment("feature_cache_hits");
+                return featureStackArray;
+            } catch (IOException e) {
+                //a broken entry is computed again and replaced
+                file.delete();
+            }
+        }
+        Metrics.increment("feature_cache_misses");
+
+        long start = Metrics.start();
+        FeatureStackArray featureStackArray = compute(imagePlus, wekaSegmentation);
+        Metrics.stop("feature_cache_compute_seconds", start);
+        if (featureStackArray == null) {
+            return null;
+        }
+        try {
+            write(featureStackArray, imagePlus.getWidth(), imagePlus.getHeight(), file);
+            evict();
+        } catch (IOException e) {
+            //the features are still good for this image, they are only not cached
+            Metrics.increment("feature_cache_write_failures");
+        }
+        return featureStackArray;
+    }
+
+    /**
+     * @return name of the entry for the image with hash <code>imageHash</code> and the feature settings of <code>wekaSegmentation</code>
+     */
+    public static String getKey(String imageHash, WekaSegmentation wekaSegmentation) {
+        return BatchManifest.hash(imageHash
+                + "|minSigma=" + wekaSegmentation.getMinimumSigma()
+                + "|maxSigma=" + wekaSegmentation.getMaximumSigma()
+                + "|features=" + Arrays.toString(wekaSegmentation.getEnabledFeatures())
+                + "|membraneThickness=" + wekaSegmentation.getMembraneThickness()
+                + "|membranePatchSize=" + wekaSegmentation.getMembranePatchSize()
+                + "|neighbours=" + wekaSegmentation.useNeighborhood());
+    }
+
+    /**
+     * Computes the feature stacks the same way <code>WekaSegmentation.applyClassifier</code> does
+     */
+    private static FeatureStackArray compute(ImagePlus imagePlus, WekaSegmentation wekaSegmentation) {
+        ImageStack stack = imagePlus.getStack();
+        FeatureStackArray featureStackArray = newFeatureStackArray(stack.getSize(), wekaSegmentation);
+        for (int slice = 1; slice <= stack.getSize(); slice++) {
+            FeatureStack featureStack = new FeatureStack(new ImagePlus(imagePlus.getTitle(), stack.getProcessor(slice)));
+            featureStack.setMinimumSigma(wekaSegmentation.getMinimumSigma());
+            featureStack.setMaximumSigma(wekaSegmentation.getMaximumSigma());
+            featureStack.setEnabledFeatures(wekaSegmentation.getEnabledFeatures());
+            featureStack.setMembraneSize(wekaSegmentation.getMembraneThickness());
+            featureStack.setMembranePatchSize(wekaSegmentation.getMembranePatchSize());
+            featureStack.setUseNeighbors(wekaSegmentation.useNeighborhood());
+            if (!featureStack.updateFeaturesMT()) {
+                return null;
+            }
+            featureStackArray.set(featureStack, slice - 1);
+        }
+        return featureStackArray;
+    }
+
+    private static FeatureStackArray newFeatureStackArray(int slices, WekaSegmentation wekaSegmentation) {
+        return new FeatureStackArray(slices, wekaSegmentation.getMinimumSigma(), wekaSegmentation.getMaximumSigma(),
+                wekaSegmentation.useNeighborhood(), wekaSegmentation.getMembraneThickness(), wekaSegmentation.getMembranePatchSize(),
+                wekaSegmentation.getEnabledFeatures());
+    }
+
+    private static void write(FeatureStackArray featureStackArray, int width, int height, File file) throws IOException {
+        int slices = featureStackArray.getSize();
+        ImageStack first = featureStackArray.get(0).getStack();
+        int features = first.getSize();
+
+        StringBuilder labels = new StringBuilder();
+        for (int feature = 1; feature <= features; feature++) {
+            String label = first.getSliceLabel(feature);
+            labels.append(label == null ? "" : label.replace('\n', ' ')).append('\n');
+        }
+        byte[] labelBytes = labels.toString().getBytes(StandardCharsets.UTF_8);
+        int paddedLabelSize = (labelBytes.length + 3) / 4 * 4;
+
+        //written under another name first, so that a reader never maps half a file
+        File temp = File.createTempFile(file.getName() + ".", ".tmp", directory(file));
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(temp, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + paddedLabelSize).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(slices).putInt(features).putInt(paddedLabelSize);
+            header.position(HEADER_SIZE);
+            header.put(labelBytes);
+            header.clear();
+            writeFully(channel, header);
+
+            ByteBuffer featureBuffer = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.LITTLE_ENDIAN);
+            for (int slice = 0; slice < slices; slice++) {
+                ImageStack stack = featureStackArray.get(slice).getStack();
+                for (int feature = 1; feature <= features; feature++) {
+                    ImageProcessor processor = stack.getProcessor(feature);
+                    if (!(processor instanceof FloatProcessor)) {
+                        processor = processor.convertToFloat();
+                    }
+                    featureBuffer.clear();
+                    featureBuffer.asFloatBuffer().put((float[]) processor.getPixels());
+                    writeFully(channel, featureBuffer);
+                }
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            //another thread wrote the same entry in the mean time
+            if (!file.isFile()) {
+                throw new IOException("Not able to write " + file);
+            }
+        }
+    }
+
+    private static FeatureStackArray read(File file, WekaSegmentation wekaSegmentation) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a feature cache file: " + file);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int slices = header.getInt();
+            int features = header.getInt();
+            int labelSize = header.getInt();
+            long dataSize = 4L * width * height * features * slices;
+            if (labelSize < 0 || channel.size() != HEADER_SIZE + labelSize + dataSize) {
+                throw new IOException("Truncated file: " + file);
+            }
+
+            ByteBuffer labelBuffer = ByteBuffer.allocate(labelSize);
+            readFully(channel, labelBuffer);
+            String[] labels = new String(labelBuffer.array(), StandardCharsets.UTF_8).split("\n");
+
+            //one feature at a time, straight into the array the FloatProcessor keeps
+            ByteBuffer featureBuffer = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.LITTLE_ENDIAN);
+            FeatureStackArray featureStackArray = newFeatureStackArray(slices, wekaSegmentation);
+            for (int slice = 0; slice < slices; slice++) {
+                ImageStack stack = new ImageStack(width, height);
+                for (int feature = 0; feature < features; feature++) {
+                    readFully(channel, featureBuffer);
+                    float[] values = new float[width * height];
+                    featureBuffer.asFloatBuffer().get(values);
+                    stack.addSlice(feature < labels.length ? labels[feature] : null, new FloatProcessor(width, height, values));
+                }
+                FeatureStack featureStack = new FeatureStack(width, height, false);
+                featureStack.setStack(stack);
+                featureStackArray.set(featureStack, slice);
+            }
+            return featureStackArray;
+        }
+    }
+
+    /*
+    fills buffer from the current position of channel and flips it for reading
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Deletes the temporary files of writers that died before renaming them
+     */
+    private void deleteStaleTempFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp") && now - file.lastModified() > STALE_TEMP_MILLIS) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits in <code>maximumBytes</code>
+     */
+    private synchronized void evict() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        //most recently used first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(b.lastModified(), a.lastModified());
+            }
+        });
+        long total = 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(EXTENSION)) {
+                continue;
+            }
+            long length = file.length();
+            if (total + length > maximumBytes && file.delete()) {
+                Metrics.increment("feature_cache_evictions");
+            } else {
+                total += length;
+            }
+        }
+    }
+
+    private static File directory(File file) {
+        return file.getAbsoluteFile().getParentFile();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaximumBytes() {
+        return maximumBytes;
+    }
+}
@@ -0,0 +1,171 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <code>FloatImageIO</code> reads and writes the lossless intermediate format used for probability maps.
+ * Unlike JPEG, it keeps the 32-bit probabilities as they are, so the next stage thresholds the values given by the classifier.
+ *
+ * Layout of a file(all values are little endian):
+ * <ul>
+ * <li>int: magic number "EMBF"</li>
+ * <li>int: version</li>
+ * <li>int: width</li>
+ * <li>int: height</li>
+ * <li>int: number of slices</li>
+ * <li>padding up to <code>HEADER_SIZE</code> bytes</li>
+ * <li>float32 pixels, slice after slice, row after row</li>
+ * </ul>
+ * The pixels can be memory-mapped with <code>map(File)</code> without copying them.
+ */
+public class FloatImageIO {
+
+    /**
+     * extension of the files written by <code>write</code>
+     */
+    public static final String EXTENSION = ".f32";
+
+    private static final int MAGIC = 0x454D4246;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private FloatImageIO() {
+    }
+
+    /**
+     * Writes all the slices of <code>imagePlus</code> as 32-bit float.
+     * @param imagePlus image to be written. Images that are not 32-bit are converted slice by slice.
+     * @param file file to be written
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(ImagePlus imagePlus, File file) throws IOException {
+        ImageStack stack = imagePlus.getStack();
+        int width = imagePlus.getWidth();
+        int height = imagePlus.getHeight();
+        int slices = stack.getSize();
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            randomAccessFile.setLength(0);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(slices);
+            header.clear();
+            writeFully(channel, header);
+
+            ByteBuffer sliceBuffer = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.LITTLE_ENDIAN);
+            for (int n = 1; n <= slices; n++) {
+                ImageProcessor slice = stack.getProcessor(n);
+                if (!(slice instanceof FloatProcessor)) {
+                    slice = slice.convertToFloat();
+                }
+                sliceBuffer.clear();
+                sliceBuffer.asFloatBuffer().put((float[]) slice.getPixels());
+                writeFully(channel, sliceBuffer);
+            }
+        }
+    }
+
+    /**
+     * Reads a file written by <code>write</code> into a 32-bit image
+     * @param file file to be read
+     * @return image with all the slices of the file
+     * @throws IOException if the file cannot be read or is not in this format
+     */
+    public static ImagePlus read(File file) throws IOException {
+        int[] dimensions = getDimensions(file);
+        int width = dimensions[0];
+        int height = dimensions[1];
+        FloatBuffer pixels = map(file);
+
+        ImageStack stack = new ImageStack(width, height);
+        for (int n = 0; n < dimensions[2]; n++) {
+            float[] slice = new float[width * height];
+            pixels.get(slice);
+            stack.addSlice(null, new FloatProcessor(width, height, slice));
+        }
+        return new ImagePlus(file.getName(), stack);
+    }
+
+    /**
+     * Maps the pixels of a file written by <code>write</code> into memory without copying them.
+     * Pixel (x, y) of slice n(starting from 0) is at index <code>(n * height + y) * width + x</code>.
+     * @param file file to be mapped
+     * @return read-only view of the pixels
+     * @throws IOException if the file cannot be read or is not in this format
+     */
+    public static FloatBuffer map(File file) throws IOException {
+        int[] dimensions = getDimensions(file);
+        long size = 4L * dimensions[0] * dimensions[1] * dimensions[2];
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            if (channel.size() < HEADER_SIZE + size) {
+                throw new IOException("Truncated file: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer.asFloatBuffer();
+        }
+    }
+
+    /**
+     * Reads only the header of a file written by <code>write</code>
+     * @param file file to be read
+     * @return {width, height, number of slices}
+     * @throws IOException if the file cannot be read or is not in this format
+     */
+    public static int[] getDimensions(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    throw new IOException("Not a float image: " + file);
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a float image: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported float image version " + version + ": " + file);
+            }
+            return new int[]{header.getInt(), header.getInt(), header.getInt()};
+        }
+    }
+
+    /**
+     * @return true if the file has the extension of this format
+     */
+    public static boolean isFloatImage(File file) {
+        return file.getName().endsWith(EXTENSION);
+    }
+
+    /**
+     * Replaces the extension of a file name
+     * @param fileName name of a file, eg. "c369.jpg"
+     * @param extension new extension including the dot, eg. ".tif"
+     * @return eg. "c369.tif"
+     */
+    public static String withExtension(String fileName, String extension) {
+        int dot = fileName.lastIndexOf('.');
+        return (dot > 0 ? fileName.substring(0, dot) : fileName) + extension;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
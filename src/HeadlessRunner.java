@@ -0,0 +1,505 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <code>HeadlessRunner</code> runs the stages from the command line, without any dialog, window or RoiManager.
+ * It can be used on machines without a display.
+ *
+ * Usage:
+ * <pre>
+ * java -cp &lt;classpath&gt; HeadlessRunner --input &lt;folder&gt; --output &lt;folder&gt; [options]
+ *
+ *   --stages weka,threshold,boundry,levelset   stages to run, in this order(default: all)
+ *   --pipeline                                  run all the stages in memory(see PipelineRunner). Not with --force, --read-ahead, --writer-threads, --weka-batch, --feature-cache, --levelset-images or --masked-weka
+ *   --model &lt;file&gt;                              classifier model for Weka Segmentation
+ *   --lower &lt;value&gt; --upper &lt;value&gt;             threshold limits for the probability map(default: 0.0 and 0.6)
+ *   --threads &lt;n&gt;                               number of images processed at the same time(rois for Level Set)
+ *   --levelset-images &lt;n&gt;                       number of images processed at the same time by Level Set(default: 1)
+ *   --read-ahead &lt;n&gt;                            number of images Level Set reads ahead in the background(default: 2, 0 for none)
+ *   --writer-threads &lt;n&gt;                        number of threads Level Set writes its results with(default: 1, 0 for none)
+ *   --force                                     process all images again, even if their output is up to date
+ *   --narrow-band                               evolve the cells with NarrowBandActiveContours instead of ActiveContours
+ *   --adaptive                                  stop evolving a cell once its area settles(see StepSchedule)
+ *   --pyramid &lt;factor&gt;                         find the embryo boundry on the image shrunk by factor first, then refine it
+ *   --time-lapse                                start every image from the cells of the previous one(see TimeLapseTracker)
+ *   --tile-size &lt;px&gt;                            classify images larger than this tile by tile(see TiledClassifier)
+ *   --tile-threads &lt;n&gt;                          number of tiles of one image classified at the same time(default: 1)
+ *   --weka-batch &lt;n&gt;                            classify up to n images of the same size in one stack(see StackClassifier)
+ *   --masked-weka                               find the embryo boundry first and classify only the part of the images near the embryo
+ *   --feature-cache &lt;folder&gt;                    keep the Weka feature stacks in this folder(see FeatureCache)
+ *   --feature-cache-size &lt;MB&gt;                   maximum size of the feature cache(default: 10240)
+ *   --metrics-json &lt;file&gt;                       write timers and counters of the run as JSON(see Metrics)
+ *   --metrics-prom &lt;file&gt;                       write timers and counters of the run in the Prometheus text format
+ *   --workers &lt;n&gt;                               share the images of every stage between n worker processes(see WorkQueue)
+ *   --lease &lt;seconds&gt;                           time after which the images of a worker that stopped are taken over(default: 60)
+ * </pre>
+ * The original images are read from the input folder. The results of each stage are written into sub folders of the output folder:
+ * <code>probMap</code>, <code>threshold</code>, <code>boundry</code> and <code>output</code>.
+ *
+ * With <code>--workers</code> this process only coordinates: for every stage it starts n copies of itself with <code>--worker &lt;id&gt;</code>,
+ * which claim the images through a <code>WorkQueue</code> in the output folder of the stage, and waits for all of them before the next stage.
+ * Each worker writes its own manifest journal, which are merged into the manifest once the stage is done.
+ * The metrics files of a worker get <code>.&lt;stage&gt;.worker-&lt;id&gt;</code> appended to their name.
+ *
+ * The exit code is 0 if all the images were done, 1 if some of them failed(they are logged, and done again by the next run) and 2 if the
+ * arguments are not valid.
+ */
+public class HeadlessRunner {
+
+    private static final String USAGE = "Usage: HeadlessRunner --input <folder> --output <folder> [--stages weka,threshold,boundry,levelset] [--pipeline]"
+            + " [--model <file>] [--lower <value>] [--upper <value>] [--threads <n>] [--levelset-images <n>] [--read-ahead <n>] [--writer-threads <n>] [--force] [--narrow-band] [--adaptive] [--pyramid <factor>] [--time-lapse] [--tile-size <px>] [--tile-threads <n>] [--weka-batch <n>] [--masked-weka]"
+            + " [--feature-cache <folder>] [--feature-cache-size <MB>] [--metrics-json <file>] [--metrics-prom <file>]"
+            + " [--workers <n>] [--lease <seconds>]";
+
+    /**
+     * options of the stages run one after the other that the in-memory pipeline does not have
+     */
+    private static final List<String> NOT_IN_PIPELINE = Arrays.asList("--force", "--read-ahead", "--writer-threads", "--weka-batch",
+            "--feature-cache", "--feature-cache-size", "--levelset-images", "--masked-weka");
+
+    private static final Set<String> ALL_STAGES = new LinkedHashSet<String>(Arrays.asList("weka", "threshold", "boundry", "levelset"));
+
+    private String inputDir;
+    private String outputDir;
+    private String model;
+    private double lowerThreshold = 0.0;
+    private double upperThreshold = 0.6;
+    private int numberOfThreads = 1;
+    private int levelSetImages = 1;
+    private int readAhead = 2;
+    private int writerThreads = 1;
+    private boolean incremental = true;
+    private boolean pipeline = false;
+    private boolean narrowBand = false;
+    private boolean adaptiveStepping = false;
+    private int pyramidFactor = 1;
+    private boolean timeLapse = false;
+    private int tileSize = 0;
+    private int tileThreads = 1;
+    private int wekaBatchSize = 1;
+    private boolean maskedWeka = false;
+    private String featureCacheDir;
+    private long featureCacheSize = 10240;
+    private Set<String> stages = ALL_STAGES;
+    private String metricsJson;
+    private String metricsPrometheus;
+    private int numberOfWorkers = 0;
+    private String workerId;
+    private long leaseSeconds = 60;
+
+    /**
+     * arguments of the command line, passed on to the workers
+     */
+    private String[] args;
+
+    public static void main(String[] args) {
+        //must be set before any AWT class is loaded
+        System.setProperty("java.awt.headless", "true");
+
+        HeadlessRunner headlessRunner = new HeadlessRunner();
+        try {
+            headlessRunner.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        if (headlessRunner.run() > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the command line arguments
+     * @throws IllegalArgumentException if an argument is missing or not valid
+     */
+    void parse(String[] args) {
+        this.args = args;
+        Set<String> given = new LinkedHashSet<String>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            given.add(arg);
+            switch (arg) {
+                case "--input":
+                    inputDir = value(args, ++i, arg);
+                    break;
+                case "--output":
+                    outputDir = value(args, ++i, arg);
+                    break;
+                case "--model":
+                    model = value(args, ++i, arg);
+                    break;
+                case "--lower":
+                    lowerThreshold = number(value(args, ++i, arg), arg);
+                    break;
+                case "--upper":
+                    upperThreshold = number(value(args, ++i, arg), arg);
+                    break;
+                case "--threads":
+                    numberOfThreads = (int) number(value(args, ++i, arg), arg);
+                    break;
+                case "--levelset-images":
+                    levelSetImages = (int) number(value(args, ++i, arg), arg);
+                    break;
+                case "--read-ahead":
+                    readAhead = (int) number(value(args, ++i, arg), arg);
+                    break;
+                case "--writer-threads":
+                    writerThreads = (int) number(value(args, ++i, arg), arg);
+                    break;
+                case "--stages":
+                    stages = new LinkedHashSet<String>();
+                    for (String stage : value(args, ++i, arg).split(",")) {
+                        stage = stage.trim().toLowerCase();
+                        if (stage.equals("boundary")) {
+                            stage = "boundry";
+                        }
+                        if (!ALL_STAGES.contains(stage)) {
+                            throw new IllegalArgumentException("Unknown stage: " + stage);
+                        }
+                        stages.add(stage);
+                    }
+                    break;
+                case "--pipeline":
+                    pipeline = true;
+                    break;
+                case "--force":
+                    incremental = false;
+                    break;
+                case "--narrow-band":
+                    narrowBand = true;
+                    break;
+                case "--adaptive":
+                    adaptiveStepping = true;
+                    break;
+                case "--pyramid":
+                    pyramidFactor = (int) number(value(args, ++i, arg), arg);
+                    break;
+                case "--time-lapse":
+                    timeLapse = true;
+                    break;
+                case "--tile-size":
+                    tileSize = (int) number(value(args, ++i, arg), arg);
+                    break;
+                case "--tile-threads":
+                    tileThreads = (int) number(value(args, ++i, arg), arg);
+                    break;
+                case "--weka-batch":
+                    wekaBatchSize = (int) number(value(args, ++i, arg), arg);
+                    break;
+                case "--masked-weka":
+                    maskedWeka = true;
+                    break;
+                case "--feature-cache":
+                    featureCacheDir = value(args, ++i, arg);
+                    break;
+                case "--feature-cache-size":
+                    featureCacheSize = (long) number(value(args, ++i, arg), arg);
+                    break;
+                case "--metrics-json":
+                    metricsJson = value(args, ++i, arg);
+                    break;
+                case "--metrics-prom":
+                    metricsPrometheus = value(args, ++i, arg);
+                    break;
+                case "--workers":
+                    numberOfWorkers = (int) number(value(args, ++i, arg), arg);
+                    break;
+                case "--worker":
+                    workerId = value(args, ++i, arg);
+                    break;
+                case "--lease":
+                    leaseSeconds = (long) number(value(args, ++i, arg), arg);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        if (inputDir == null || outputDir == null) {
+            throw new IllegalArgumentException("--input and --output are required");
+        }
+        if ((pipeline || stages.contains("weka")) && model == null) {
+            throw new IllegalArgumentException("--model is required for Weka Segmentation");
+        }
+        if (pipeline) {
+            for (String option : NOT_IN_PIPELINE) {
+                if (given.contains(option)) {
+                    throw new IllegalArgumentException(option + " can not be used with --pipeline");
+                }
+            }
+        }
+        if ((numberOfWorkers > 0 || workerId != null) && pipeline) {
+            throw new IllegalArgumentException("--workers can not be used with --pipeline");
+        }
+        if ((numberOfWorkers > 0 || workerId != null) && timeLapse && stages.contains("levelset")) {
+            throw new IllegalArgumentException("--workers can not be used with --time-lapse, the frames must be done in order");
+        }
+        if (workerId != null) {
+            //every worker writes its own metrics
+            String suffix = "." + stages.iterator().next() + ".worker-" + workerId;
+            metricsJson = metricsJson == null ? null : metricsJson + suffix;
+            metricsPrometheus = metricsPrometheus == null ? null : metricsPrometheus + suffix;
+        }
+    }
+
+    /**
+     * Runs the selected stages and writes the metrics of the run, if asked for
+     * @return number of images that failed(with workers, number of workers that failed)
+     */
+    int run() {
+        Metrics.setEnabled(metricsJson != null || metricsPrometheus != null);
+        long start = Metrics.start();
+        try {
+            if (numberOfWorkers > 0) {
+                return runWorkers();
+            } else {
+                BatchManifest.setWorkerId(workerId);
+                return runStages();
+            }
+        } finally {
+            Metrics.stop("run_seconds", start);
+            writeMetrics();
+        }
+    }
+
+    /**
+     * Runs every selected stage in <code>numberOfWorkers</code> processes and waits for all of them before the next stage,
+     * as a stage reads the results of the previous one
+     * @return number of workers that failed or had images that failed, over all the stages
+     */
+    private int runWorkers() {
+        int failedWorkers = 0;
+        for (String stage : getStageOrder()) {
+            log(stage + " in " + numberOfWorkers + " workers");
+            File stageOutputDir = makeDir(getOutputFolderName(stage));
+            //claims left by a run that was killed or interrupted would make the workers skip their images
+            WorkQueue.clear(getClaimsDir(stageOutputDir));
+            List<Process> workers = new ArrayList<Process>();
+            try {
+                for (int id = 0; id < numberOfWorkers; id++) {
+                    workers.add(new ProcessBuilder(getWorkerCommand(stage, id)).inheritIO().start());
+                }
+                int failed = 0;
+                for (Process worker : workers) {
+                    if (worker.waitFor() != 0) {
+                        failed++;
+                    }
+                }
+                if (failed > 0) {
+                    System.err.println(failed + " worker(s) of " + stage + " failed or had images that failed, those images are done again by the next run");
+                    failedWorkers += failed;
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Not able to start the workers: " + e.getMessage(), e);
+            } catch (InterruptedException e) {
+                for (Process worker : workers) {
+                    worker.destroy();
+                }
+                Thread.currentThread().interrupt();
+                return failedWorkers + 1;
+            } finally {
+                //the images the workers finished are kept, the rest is done again by the next run
+                if (!BatchManifest.merge(stageOutputDir.getPath())) {
+                    System.err.println("Not able to merge the manifest journals of " + stageOutputDir);
+                }
+                WorkQueue.clear(getClaimsDir(stageOutputDir));
+            }
+        }
+        return failedWorkers;
+    }
+
+    /**
+     * @return command line of a worker: this JVM and class path, the arguments of this run without <code>--workers</code>, for one stage
+     */
+    private List<String> getWorkerCommand(String stage, int id) {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        //the heap of the machine is shared by the workers
+        command.add("-Xmx" + Math.max(256L << 20, Runtime.getRuntime().maxMemory() / numberOfWorkers));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(HeadlessRunner.class.getName());
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--workers") || args[i].equals("--stages")) {
+                i++;
+            } else {
+                command.add(args[i]);
+            }
+        }
+        command.add("--stages");
+        command.add(stage);
+        command.add("--worker");
+        command.add(Integer.toString(id));
+        return command;
+    }
+
+    /**
+     * @return work queue of this worker for a stage, null if this process is not a worker
+     */
+    private WorkQueue getWorkQueue(File stageOutputDir) {
+        if (workerId == null) {
+            return null;
+        }
+        try {
+            String owner = "worker-" + workerId + "@" + ManagementFactory.getRuntimeMXBean().getName();
+            return new WorkQueue(getClaimsDir(stageOutputDir), owner, leaseSeconds * 1000);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the selected stages in the order they are run. With <code>--masked-weka</code> the boundry of the embryo is found first,
+     * as Weka Segmentation needs it
+     */
+    private List<String> getStageOrder() {
+        List<String> order = new ArrayList<String>(stages);
+        if (maskedWeka && order.remove("boundry")) {
+            order.add(0, "boundry");
+        }
+        return order;
+    }
+
+    private static File getClaimsDir(File stageOutputDir) {
+        return new File(stageOutputDir, ".claims");
+    }
+
+    private static String getOutputFolderName(String stage) {
+        switch (stage) {
+            case "weka":
+                return "probMap";
+            case "threshold":
+                return "threshold";
+            case "boundry":
+                return "boundry";
+            default:
+                return "output";
+        }
+    }
+
+    /**
+     * Runs the selected stages one after the other
+     * @return number of images that failed, over all the stages
+     */
+    private int runStages() {
+        File probMapDir = makeDir("probMap");
+        File thresholdDir = makeDir("threshold");
+        File boundryDir = makeDir("boundry");
+        File finalOutputDir = makeDir("output");
+
+        if (pipeline) {
+            PipelineRunner pipelineRunner = new PipelineRunner(inputDir, finalOutputDir.getPath(), model, lowerThreshold, upperThreshold);
+            pipelineRunner.setNumberOfThreads(numberOfThreads);
+            pipelineRunner.setTileSize(tileSize);
+            pipelineRunner.setTileThreads(tileThreads);
+            pipelineRunner.setTimeLapse(timeLapse);
+            pipelineRunner.setPyramidFactor(pyramidFactor);
+            pipelineRunner.getLevelSetParameters().setNarrowBand(narrowBand);
+            pipelineRunner.getLevelSetParameters().setAdaptiveStepping(adaptiveStepping);
+            return pipelineRunner.apply();
+        }
+
+        int failures = 0;
+        for (String stage : getStageOrder()) {
+            switch (stage) {
+                case "weka":
+                    log("Weka Segmentation");
+                    WekaSegmentaionStage wekaSegmentaionStage = new WekaSegmentaionStage(inputDir, probMapDir.getPath(), model);
+                    wekaSegmentaionStage.setNumberOfThreads(numberOfThreads);
+                    wekaSegmentaionStage.setIncremental(incremental);
+                    wekaSegmentaionStage.setTileSize(tileSize);
+                    wekaSegmentaionStage.setTileThreads(tileThreads);
+                    wekaSegmentaionStage.setBatchSize(wekaBatchSize);
+                    wekaSegmentaionStage.setEmbryoMaskFolder(maskedWeka ? boundryDir.getPath() : null);
+                    wekaSegmentaionStage.setWorkQueue(getWorkQueue(probMapDir));
+                    if (featureCacheDir != null) {
+                        try {
+                            wekaSegmentaionStage.setFeatureCache(new FeatureCache(new File(featureCacheDir), featureCacheSize << 20));
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e.getMessage(), e);
+                        }
+                    }
+                    failures += wekaSegmentaionStage.apply();
+                    break;
+                case "threshold":
+                    log("Thresholding");
+                    ThresholdingStage thresholdingStage = new ThresholdingStage(probMapDir.getPath(), thresholdDir.getPath(), lowerThreshold, upperThreshold);
+                    thresholdingStage.setNumberOfThreads(numberOfThreads);
+                    thresholdingStage.setIncremental(incremental);
+                    thresholdingStage.setWorkQueue(getWorkQueue(thresholdDir));
+                    failures += thresholdingStage.apply();
+                    break;
+                case "boundry":
+                    log("Boundry Detection");
+                    EmbryoBoundryDetection embryoBoundryDetection = new EmbryoBoundryDetection(inputDir, boundryDir.getPath());
+                    embryoBoundryDetection.setNumberOfThreads(numberOfThreads);
+                    embryoBoundryDetection.setIncremental(incremental);
+                    embryoBoundryDetection.setPyramidFactor(pyramidFactor);
+                    embryoBoundryDetection.setWorkQueue(getWorkQueue(boundryDir));
+                    failures += embryoBoundryDetection.apply();
+                    break;
+                case "levelset":
+                    log("Level Set");
+                    LevelSetStage levelSetStage = new LevelSetStage(inputDir, thresholdDir.getPath(), boundryDir.getPath(), finalOutputDir.getPath());
+                    levelSetStage.setNumberOfThreads(numberOfThreads);
+                    levelSetStage.setNumberOfImages(levelSetImages);
+                    levelSetStage.setReadAhead(readAhead);
+                    levelSetStage.setWriterThreads(writerThreads);
+                    levelSetStage.setIncremental(incremental);
+                    levelSetStage.getLevelSetParameters().setNarrowBand(narrowBand);
+                    levelSetStage.getLevelSetParameters().setAdaptiveStepping(adaptiveStepping);
+                    levelSetStage.setTimeLapse(timeLapse);
+                    levelSetStage.setWorkQueue(getWorkQueue(finalOutputDir));
+                    failures += levelSetStage.apply();
+                    break;
+            }
+        }
+        return failures;
+    }
+
+    private void writeMetrics() {
+        try {
+            if (metricsJson != null) {
+                Metrics.writeJson(new File(metricsJson));
+            }
+            if (metricsPrometheus != null) {
+                Metrics.writePrometheus(new File(metricsPrometheus));
+            }
+        } catch (IOException e) {
+            System.err.println("Not able to write metrics: " + e.getMessage());
+        }
+    }
+
+    private File makeDir(String name) {
+        File dir = new File(outputDir, name);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("Not able to create " + dir);
+        }
+        return dir;
+    }
+
+    private static void log(String stage) {
+        System.out.println("[" + stage + "]");
+    }
+
+    private static String value(String[] args, int i, String name) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + name);
+        }
+        return args[i];
+    }
+
+    private static double number(String value, String name) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number for " + name + ": " + value);
+        }
+    }
+}
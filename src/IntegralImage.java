@@ -0,0 +1,151 @@
+import ij.gui.Roi;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.*;
+
+/**
+ * <code>IntegralImage</code> holds summed-area tables of the pixel values and of the squared pixel values of an image, so that
+ * the mean and standard deviation of any rectangle cost O(1) once the tables are built(one pass over the image).
+ * Non rectangular rois are measured with one pass over the pixels of the roi.
+ *
+ * Nothing is changed on the image(no roi is set), and the tables are not changed after construction, so one
+ * <code>IntegralImage</code> can be used by several threads at the same time.
+ * Standard deviations are sample standard deviations(n - 1), like the ones of <code>ImageStatistics</code>. Calibration is not applied.
+ *
+ * @see LevelSetParameters#setParametersForCurveEvolution(IntegralImage, Roi)
+ */
+public class IntegralImage {
+
+    private final ImageProcessor imageProcessor;
+    private final int width;
+    private final int height;
+
+    /**
+     * sums of the rectangle (0, 0) - (x, y), exclusive, at <code>y * (width + 1) + x</code>
+     */
+    private final double[] sum;
+    private final double[] sumOfSquares;
+
+    /**
+     * @param imageProcessor image to be measured. Colour images are converted to grey
+     */
+    public IntegralImage(ImageProcessor imageProcessor) {
+        this.imageProcessor = grey(imageProcessor);
+        this.width = imageProcessor.getWidth();
+        this.height = imageProcessor.getHeight();
+
+        int stride = width + 1;
+        sum = new double[stride * (height + 1)];
+        sumOfSquares = new double[stride * (height + 1)];
+        for (int y = 0; y < height; y++) {
+            double rowSum = 0, rowSumOfSquares = 0;
+            int above = y * stride;
+            int current = above + stride;
+            for (int x = 0; x < width; x++) {
+                double value = this.imageProcessor.getf(y * width + x);
+                rowSum += value;
+                rowSumOfSquares += value * value;
+                sum[current + x + 1] = sum[above + x + 1] + rowSum;
+                sumOfSquares[current + x + 1] = sumOfSquares[above + x + 1] + rowSumOfSquares;
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param box rectangle, clipped to the image
+     * @return mean of the pixels in box, 0 if box is outside the image
+     */
+    public double getMean(Rectangle box) {
+        Rectangle clipped = clip(box);
+        long n = (long) clipped.width * clipped.height;
+        return n > 0 ? boxSum(sum, clipped) / n : 0;
+    }
+
+    /**
+     * @param box rectangle, clipped to the image
+     * @return standard deviation of the pixels in box, 0 if it has less than two pixels
+     */
+    public double getStdDev(Rectangle box) {
+        Rectangle clipped = clip(box);
+        long n = (long) clipped.width * clipped.height;
+        return stdDev(n, boxSum(sum, clipped), boxSum(sumOfSquares, clipped));
+    }
+
+    /**
+     * @return standard deviation of the pixels in roi(clipped to the image). O(1) for rectangles, one pass over the roi otherwise
+     */
+    public double getStdDev(Roi roi) {
+        if (roi.getMask() == null) {
+            return getStdDev(roi.getBounds());
+        }
+        return getStdDev(imageProcessor, roi);
+    }
+
+    /**
+     * Standard deviation of the pixels in roi(clipped to the image) without building the tables, for measuring a single roi.
+     * Like <code>getStatistics().stdDev</code>, but without setting the roi on the image.
+     */
+    public static double getStdDev(ImageProcessor imageProcessor, Roi roi) {
+        ImageProcessor ip = grey(imageProcessor);
+        int width = ip.getWidth();
+        Rectangle bounds = roi.getBounds();
+        Rectangle clipped = bounds.intersection(new Rectangle(0, 0, width, ip.getHeight()));
+        ImageProcessor mask = roi.getMask();
+
+        long n = 0;
+        double sum = 0, sumOfSquares = 0;
+        for (int y = clipped.y; y < clipped.y + clipped.height; y++) {
+            for (int x = clipped.x; x < clipped.x + clipped.width; x++) {
+                if (mask == null || mask.get(x - bounds.x, y - bounds.y) != 0) {
+                    double value = ip.getf(y * width + x);
+                    sum += value;
+                    sumOfSquares += value * value;
+                    n++;
+                }
+            }
+        }
+        return stdDev(n, sum, sumOfSquares);
+    }
+
+    private static double stdDev(long n, double sum, double sumOfSquares) {
+        if (n < 2) {
+            return 0;
+        }
+        double variance = (sumOfSquares - sum * sum / n) / (n - 1);
+        return variance > 0 ? Math.sqrt(variance) : 0;
+    }
+
+    private double boxSum(double[] table, Rectangle box) {
+        if (box.width <= 0 || box.height <= 0) {
+            return 0;
+        }
+        int stride = width + 1;
+        int top = box.y * stride;
+        int bottom = (box.y + box.height) * stride;
+        int left = box.x;
+        int right = box.x + box.width;
+        return table[bottom + right] - table[top + right] - table[bottom + left] + table[top + left];
+    }
+
+    private Rectangle clip(Rectangle box) {
+        Rectangle clipped = box.intersection(new Rectangle(0, 0, width, height));
+        if (clipped.width < 0 || clipped.height < 0) {
+            clipped.width = 0;
+            clipped.height = 0;
+        }
+        return clipped;
+    }
+
+    private static ImageProcessor grey(ImageProcessor imageProcessor) {
+        return imageProcessor instanceof ColorProcessor ? imageProcessor.convertToByte(false) : imageProcessor;
+    }
+}
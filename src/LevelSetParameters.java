@@ -1,5 +1,6 @@
 import ij.ImagePlus;
 import ij.gui.Roi;
+import ij.process.ImageProcessor;
 
 import java.awt.*;
 
@@ -19,6 +20,91 @@ public class LevelSetParameters {
     protected int step_iteration;
     protected boolean getProgressReport;
 
+    /**
+     * if true, the roi is evolved inside a padded window around its bounds instead of the whole image
+     * @see LevelSetUtility#getSegImageCropped(ImagePlus, Roi, double, double, double, double, int, int, int)
+     */
+    protected boolean cropToRoi = false;
+
+    /**
+     * initial padding(in px) of the window around the bounds of the roi. The window grows when the contour reaches its edge
+     */
+    protected int cropPadding = 20;
+
+    /**
+     * if true, the roi is evolved by <code>NarrowBandActiveContours</code> instead of <code>ActiveContours</code>.
+     * Then the cost of a roi depends on the length of its contour and not on the size of the image, so <code>cropToRoi</code> is not needed.
+     * The engine is given <code>narrowBandConvergence</code> and <code>narrowBandGrey_tol</code> instead of <code>convergence</code> and <code>grey_tol</code>
+     * @see LevelSetUtility#getSegImageNarrowBand(ImagePlus, Roi, double, double, double, double, boolean, int, int)
+     */
+    protected boolean narrowBand = false;
+
+    /**
+     * convergence and grey_tol given to <code>NarrowBandActiveContours</code> in place of <code>convergence</code> and <code>grey_tol</code>,
+     * which are tuned for <code>ActiveContours</code>. There grey_tol is a number of standard deviations of the start region and convergence
+     * a fraction of the area per step. Picked by <code>setParametersForCurveEvolution</code> along with the other parameters
+     */
+    protected double narrowBandConvergence = 0.01;
+    protected double narrowBandGrey_tol = 2.0;
+
+    /**
+     * if true, the level set is stepped by an adaptive <code>StepSchedule</code>: it stops once the area of the contour settles
+     * and takes longer steps while it changes fast. The budget of <code>max_iteration * step_iteration</code> iterations stays the same
+     * @see StepSchedule#adaptive(int, int, double)
+     */
+    protected boolean adaptiveStepping = false;
+
+    /**
+     * relative change of the area of the contour per step below which the adaptive schedule counts the contour as settled
+     */
+    protected double plateauChange = 0.005;
+
+    /**
+     * if more than 0, no roi gets more than this many steps, whatever its tier is. Used for rois that start close to their membrane
+     * @see TimeLapseTracker
+     */
+    protected int stepLimit = 0;
+
+    /**
+     * value of the px inside the contour in the masks of the narrow band engine, and the value looked for when a mask is turned into a roi.
+     * Taken from <code>Prefs.blackBackground</code> when the parameters are made, so that the workers that evolve the rois never read it
+     * @see LevelSetUtility#toRoi(ImagePlus, int)
+     */
+    protected int maskForeground = BinaryMorphology.getDefaultForeground();
+
+    /**
+     * number of iterations the last roi evolved with these parameters actually used. Set by <code>LevelSetUtility.getSegImage</code>
+     */
+    protected int usedIterations = 0;
+
+    public LevelSetParameters() {
+    }
+
+    /**
+     * Copy constructor. Useful when the same settings are to be used for evolving several rois at the same time.
+     * @param levelSetParameters parameters to be copied
+     */
+    public LevelSetParameters(LevelSetParameters levelSetParameters) {
+        this.roi = levelSetParameters.roi;
+        this.convergence = levelSetParameters.convergence;
+        this.advection = levelSetParameters.advection;
+        this.curvature = levelSetParameters.curvature;
+        this.grey_tol = levelSetParameters.grey_tol;
+        this.expandToInside = levelSetParameters.expandToInside;
+        this.max_iteration = levelSetParameters.max_iteration;
+        this.step_iteration = levelSetParameters.step_iteration;
+        this.getProgressReport = levelSetParameters.getProgressReport;
+        this.cropToRoi = levelSetParameters.cropToRoi;
+        this.cropPadding = levelSetParameters.cropPadding;
+        this.narrowBand = levelSetParameters.narrowBand;
+        this.narrowBandConvergence = levelSetParameters.narrowBandConvergence;
+        this.narrowBandGrey_tol = levelSetParameters.narrowBandGrey_tol;
+        this.adaptiveStepping = levelSetParameters.adaptiveStepping;
+        this.plateauChange = levelSetParameters.plateauChange;
+        this.stepLimit = levelSetParameters.stepLimit;
+        this.maskForeground = levelSetParameters.maskForeground;
+    }
+
     /**
      * One of the major problem with microscopy images is that the illumination is not  uniform.
      * Due to this, we face the problem of Level set overshooting or premature termination of Level Set.
@@ -33,26 +119,45 @@ public class LevelSetParameters {
      * //TODO: make expansion dynamic as expanding the bounding box by 10 may not result in inclusion of cell boundry.
      *
      * Std Dev is also proportional to the area of the roi. To remove the effect of area I take the difference of outerStdDev and innerStdDev as the parameter. This kind of results in StdDev of area that is supposed ot contain the cell boundry.
+     * The roi of <code>originalImage</code> is not changed.
      * @param originalImage the original image, ie, not the thresholded or binary image.
      * @param roi           roi that represents interior region of a particular cell in the embryo
      * @author Siddharth Yadav
      */
     public void setParametersForCurveEvolution(ImagePlus originalImage, Roi roi) {
-        originalImage.setRoi(roi);
+        ImageProcessor imageProcessor = originalImage.getProcessor();
 
         //innerStdDev stores the Standard Deviation of roi
-        double innerStdDev = originalImage.getStatistics().stdDev;
+        double innerStdDev = IntegralImage.getStdDev(imageProcessor, roi);
 
         Rectangle rectangleBounds = roi.getBounds();
         //make roi larger by 10px in both x and y axis
         rectangleBounds.grow(10, 10);
 
-        Roi expandedRoi = new Roi(rectangleBounds);
-        originalImage.setRoi(expandedRoi);
-
         //outerStdDev stores the Standard Deviation of the expanded bound of roi, ie, enclosing square of the roi, expanded by 10 px.
-        double outerStdDev = expandedRoi.getStatistics().stdDev;
+        double outerStdDev = IntegralImage.getStdDev(imageProcessor, new Roi(rectangleBounds));
+
+        setParametersForCurveEvolution(roi, innerStdDev, outerStdDev);
+    }
 
+    /**
+     * Same as <code>setParametersForCurveEvolution(ImagePlus, Roi)</code>, but the standard deviations come from the summed-area tables of the image.
+     * The bounding box costs O(1) and the roi one pass over its pixels, so it is cheap for hundreds of rois. Nothing is changed on the image,
+     * so it can be called from several threads with the same <code>integralImage</code>.
+     *
+     * @param integralImage summed-area tables of the original image
+     * @param roi           roi that represents interior region of a particular cell in the embryo
+     */
+    public void setParametersForCurveEvolution(IntegralImage integralImage, Roi roi) {
+        Rectangle rectangleBounds = roi.getBounds();
+        rectangleBounds.grow(10, 10);
+        setParametersForCurveEvolution(roi, integralImage.getStdDev(roi), integralImage.getStdDev(rectangleBounds));
+    }
+
+    /*
+    picks the parameters from the standard deviation of the roi and of its bounding box grown by 10 px
+     */
+    private void setParametersForCurveEvolution(Roi roi, double innerStdDev, double outerStdDev) {
         roi.setName((outerStdDev - innerStdDev) + ":");
 //            IJ.log("\n" + (outerStdDev - innerStdDev )+ "  :  " + roi.getName() + "\n");
 
@@ -69,25 +174,38 @@ public class LevelSetParameters {
 
 
         //higher parameter implies that we can have more strong LevelSet parameter(which ends at strong edges)
+        //the narrow band engine stops at a membrane that is more than narrowBandGrey_tol standard deviations brighter than the cell.
+        //At 3 it runs through lightly illuminated membranes, so it gets less than ActiveContours in every tier
         if (parameter < 5) {
             //represents cells with very lightly illuminated cell boundry
             this.convergence = 0.0070;
             this.step_iteration = 10;
             this.max_iteration = 50;
+            this.narrowBandConvergence = 0.02;
+            this.narrowBandGrey_tol = 1.5;
         } else if (parameter < 12) {
             this.convergence = 0.0060;
             this.step_iteration = 25;
             this.max_iteration = 50;
+            this.narrowBandConvergence = 0.015;
+            this.narrowBandGrey_tol = 1.5;
         } else if (parameter < 20) {
             this.convergence = 0.0050;
             this.step_iteration = 25;
             this.max_iteration = 100;
+            this.narrowBandConvergence = 0.01;
+            this.narrowBandGrey_tol = 2.0;
         } else {
             //represents cells with highly illuminated cell boundry
             this.convergence = 0.0030;
             this.grey_tol = 3.0;
             this.step_iteration = 50;
             this.max_iteration = 100;
+            this.narrowBandConvergence = 0.005;
+            this.narrowBandGrey_tol = 2.5;
+        }
+        if (stepLimit > 0) {
+            this.max_iteration = Math.min(max_iteration, stepLimit);
         }
     }
 
@@ -166,4 +284,80 @@ public class LevelSetParameters {
     public void setGetProgressReport(boolean getProgressReport) {
         this.getProgressReport = getProgressReport;
     }
-}
\ No newline at end of file
+
+    public boolean isCropToRoi() {
+        return cropToRoi;
+    }
+
+    public void setCropToRoi(boolean cropToRoi) {
+        this.cropToRoi = cropToRoi;
+    }
+
+    public int getCropPadding() {
+        return cropPadding;
+    }
+
+    public void setCropPadding(int cropPadding) {
+        this.cropPadding = cropPadding;
+    }
+
+    public boolean isNarrowBand() {
+        return narrowBand;
+    }
+
+    public void setNarrowBand(boolean narrowBand) {
+        this.narrowBand = narrowBand;
+    }
+
+    public double getNarrowBandConvergence() {
+        return narrowBandConvergence;
+    }
+
+    public void setNarrowBandConvergence(double narrowBandConvergence) {
+        this.narrowBandConvergence = narrowBandConvergence;
+    }
+
+    public double getNarrowBandGrey_tol() {
+        return narrowBandGrey_tol;
+    }
+
+    public void setNarrowBandGrey_tol(double narrowBandGrey_tol) {
+        this.narrowBandGrey_tol = narrowBandGrey_tol;
+    }
+
+    public boolean isAdaptiveStepping() {
+        return adaptiveStepping;
+    }
+
+    public void setAdaptiveStepping(boolean adaptiveStepping) {
+        this.adaptiveStepping = adaptiveStepping;
+    }
+
+    public double getPlateauChange() {
+        return plateauChange;
+    }
+
+    public void setPlateauChange(double plateauChange) {
+        this.plateauChange = plateauChange;
+    }
+
+    public int getStepLimit() {
+        return stepLimit;
+    }
+
+    public void setStepLimit(int stepLimit) {
+        this.stepLimit = stepLimit;
+    }
+
+    public int getMaskForeground() {
+        return maskForeground;
+    }
+
+    public void setMaskForeground(int maskForeground) {
+        this.maskForeground = maskForeground;
+    }
+
+    public int getUsedIterations() {
+        return usedIterations;
+    }
+}
@@ -1,7 +1,6 @@
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
-import ij.gui.NewImage;
 import ij.gui.Roi;
 import ij.io.DirectoryChooser;
 import ij.io.FileSaver;
@@ -10,6 +9,7 @@ import ij.measure.ResultsTable;
 import ij.plugin.ImageCalculator;
 import ij.plugin.filter.ParticleAnalyzer;
 import ij.plugin.frame.RoiManager;
+import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 
 import javax.swing.*;
@@ -17,9 +17,14 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Level Set Stage.
@@ -59,6 +64,56 @@ public class LevelSetStage {
 
     private final String title = "Level Set Algo Stage";
 
+    /**
+     * number of images of the size of the original image that are alive while an image is processed(used for the memory budget)
+     */
+    private static final int WORKING_COPIES = 8;
+
+    /**
+     * number of worker threads used for evolving the rois of a single image.
+     * 1 (default) evolves the rois one after another on the calling thread
+     */
+    private int numberOfThreads = 1;
+
+    /**
+     * number of images processed at the same time by <code>apply()</code>. Each image has its own rois(see RoiStore), so they do not share any state.
+     * In time-lapse mode the frames are always processed one after another
+     */
+    private int numberOfImages = 1;
+
+    /**
+     * settings that are shared by all rois, eg. cropped window evolution.
+     * The rest of the parameters are chosen for each roi by <code>LevelSetParameters.setParametersForCurveEvolution</code>
+     */
+    private LevelSetParameters levelSetParameters = new LevelSetParameters();
+
+    /**
+     * if true, <code>apply()</code> skips the images whose output is up to date according to the manifest of <code>outputImageDir</code>
+     */
+    private boolean incremental = true;
+
+    /**
+     * if not null, the images are taken as the frames of a time-lapse and every frame starts from the contours of the previous one
+     */
+    private TimeLapseTracker timeLapseTracker;
+
+    /**
+     * number of sets of images that <code>apply()</code> reads ahead of the one being evolved. They are not counted in the memory budget
+     * @see Prefetcher
+     */
+    private int readAhead = 2;
+
+    /**
+     * number of threads that write the results of <code>apply()</code> in the background
+     * @see AsyncWriter
+     */
+    private int writerThreads = 1;
+
+    /**
+     * if not null, the images are shared with other processes and only the ones this process claims are done by <code>apply()</code>
+     */
+    private WorkQueue workQueue;
+
 
     /**
      * @param orginalImageDir
@@ -85,78 +140,240 @@ public class LevelSetStage {
      * @return RoiManager that contains evolvedROI
      */
     public static RoiManager getEvolvedROIs(ImagePlus originalImage, ImagePlus thresholdImage, ImagePlus cellMask) {
+        return getEvolvedROIs(originalImage, thresholdImage, cellMask, 1);
+    }
 
+    /**
+     * Same as <code>getEvolvedROIs(ImagePlus, ImagePlus, ImagePlus)</code> but evolves the rois on a pool of worker threads.
+     * The evolved rois are gathered in the order in which ParticleAnalyzer found them, so the result is the same as the serial one.
+     *
+     * @param originalImage
+     * @param thresholdImage
+     * @param cellMask
+     * @param numberOfThreads number of worker threads used for curve evolution. 1 or less means serial evolution
+     * @return RoiManager that contains evolvedROI
+     */
+    public static RoiManager getEvolvedROIs(ImagePlus originalImage, ImagePlus thresholdImage, ImagePlus cellMask, int numberOfThreads) {
+        return getEvolvedROIs(originalImage, thresholdImage, cellMask, new LevelSetParameters(), numberOfThreads);
+    }
 
-        thresholdImage = refineMask(thresholdImage, cellMask);
+    /**
+     * Same as <code>getEvolvedROIs(ImagePlus, ImagePlus, ImagePlus, int)</code> but the settings that are not chosen per roi(like cropped window evolution) are copied from <code>levelSetParameters</code>
+     *
+     * @param originalImage
+     * @param thresholdImage
+     * @param cellMask
+     * @param levelSetParameters settings shared by all the rois
+     * @param numberOfThreads number of worker threads used for curve evolution. 1 or less means serial evolution
+     * @return RoiManager that contains evolvedROI
+     */
+    public static RoiManager getEvolvedROIs(ImagePlus originalImage, ImagePlus thresholdImage, ImagePlus cellMask, LevelSetParameters levelSetParameters, int numberOfThreads) {
+        Roi finalRoi[] = getEvolvedRoiArray(originalImage, thresholdImage, cellMask, levelSetParameters, numberOfThreads);
 
-        //Declare ROI Manager for Particle Analyzer
+        // Updates ROI manager with properly evolved ROIs
         RoiManager rm = new RoiManager();
-        ParticleAnalyzer.setRoiManager(rm);
+        for (Roi roi : finalRoi) {
+            if (roi != null) {
+                rm.addRoi(roi);
+            }
+        }
+
+        return rm;
+    }
+
+    /**
+     * Same as <code>getEvolvedROIs(ImagePlus, ImagePlus, ImagePlus, LevelSetParameters, int)</code> but returns the evolved rois as an array.
+     * It does not use RoiManager(or any other window), so it can be used in headless mode.
+     *
+     * @param originalImage
+     * @param thresholdImage
+     * @param cellMask
+     * @param levelSetParameters settings shared by all the rois
+     * @param numberOfThreads number of worker threads used for curve evolution. 1 or less means serial evolution
+     * @return evolved rois in the order in which ParticleAnalyzer found them
+     */
+    public static Roi[] getEvolvedRoiArray(ImagePlus originalImage, ImagePlus thresholdImage, ImagePlus cellMask, LevelSetParameters levelSetParameters, int numberOfThreads) {
+
+
+        long start = Metrics.start();
+        thresholdImage = refineMask(thresholdImage, cellMask);
 
         //ParticleAnalyzer obtained. We apply Particle Analyzer on thresholded Image
-        ParticleAnalyzer pa = getParticleAnalyzer();
+        RoiStore particles = new RoiStore();
+        ParticleAnalyzer pa = getParticleAnalyzer(particles);
         pa.analyze(thresholdImage);
+        Metrics.stop("levelset_particle_analysis_seconds", start);
 
-        int numberOfRoi = rm.getCount();
-        Roi finalRoi[] = new Roi[numberOfRoi];// will store the finally evolved ROI
+        int numberOfRoi = particles.size();
+        Roi initialRoi[] = particles.toArray();
+        Metrics.observe("levelset_rois_per_image", numberOfRoi);
 
-        LevelSetParameters levelSetParameters = new LevelSetParameters();
+        //statistics for picking the parameters of every roi
+        start = Metrics.start();
+        IntegralImage integralImage = new IntegralImage(originalImage.getProcessor());
+        Metrics.stop("levelset_integral_image_seconds", start);
 
-        for (int i = 0; i < numberOfRoi; i++) {
-            levelSetParameters.setParametersForCurveEvolution(originalImage, rm.getRoi(i));
-            ImagePlus result = LevelSetUtility.getSegImage(originalImage, levelSetParameters);
-
-            //to evolved ROI
-            IJ.run(result, "Create Selection", "");
-            finalRoi[i] = result.getRoi();
-        }
+        // will store the finally evolved ROI
+        Roi finalRoi[];
+        start = Metrics.start();
+        finalRoi = evolveRois(originalImage, integralImage, initialRoi, levelSetParameters, numberOfThreads);
+        Metrics.stop("levelset_evolve_seconds", start);
 
 
         // deletes the previous ROIs.
         originalImage.setOverlay(null);
         thresholdImage.setOverlay(null);
         cellMask.setOverlay(null);
-        rm.deselect();
-        rm.reset();
-        rm.close();
 
-        // Updates ROI manager with properly evolved ROIs
-        rm = new RoiManager();
-        for (int j = 0; j < numberOfRoi; j++) {
-            rm.addRoi(finalRoi[j]);
+        return finalRoi;
+    }
+
+    /**
+     * Evolves the given rois, on a pool of worker threads if <code>numberOfThreads</code> is more than 1
+     * @param originalImage the original image
+     * @param integralImage summed-area tables of the original image
+     * @param initialRoi rois to be evolved
+     * @param sharedParameters settings shared by all the rois
+     * @param numberOfThreads number of worker threads used for curve evolution. 1 or less means serial evolution
+     * @return evolved rois, in the same order as <code>initialRoi</code>. A roi that vanished is null
+     */
+    static Roi[] evolveRois(ImagePlus originalImage, IntegralImage integralImage, Roi[] initialRoi, LevelSetParameters sharedParameters, int numberOfThreads) {
+        if (numberOfThreads > 1 && initialRoi.length > 1) {
+            return evolveRoisInParallel(originalImage, integralImage, initialRoi, sharedParameters, numberOfThreads);
         }
+        return evolveRois(originalImage, integralImage, initialRoi, sharedParameters);
+    }
 
-        return rm;
+    /**
+     * Evolves the rois one after another on the calling thread.
+     * @param originalImage the original image
+     * @param integralImage summed-area tables of the original image
+     * @param initialRoi rois found by ParticleAnalyzer
+     * @param sharedParameters settings shared by all the rois
+     * @return evolved rois, in the same order as <code>initialRoi</code>
+     */
+    private static Roi[] evolveRois(ImagePlus originalImage, IntegralImage integralImage, Roi[] initialRoi, LevelSetParameters sharedParameters) {
+        Roi finalRoi[] = new Roi[initialRoi.length];
+
+        LevelSetParameters levelSetParameters = new LevelSetParameters(sharedParameters);
+
+        for (int i = 0; i < initialRoi.length; i++) {
+            levelSetParameters.setParametersForCurveEvolution(integralImage, initialRoi[i]);
+            finalRoi[i] = evolveRoi(originalImage, levelSetParameters);
+        }
+        return finalRoi;
+    }
+
+    /**
+     * Evolves the rois on a pool of <code>numberOfThreads</code> threads.
+     * Every roi gets its own LevelSetParameters and its own view of the original image, so that no worker changes the roi of an image used by another worker.
+     * @param originalImage the original image
+     * @param integralImage summed-area tables of the original image, shared by all workers
+     * @param initialRoi rois found by ParticleAnalyzer
+     * @param sharedParameters settings shared by all the rois
+     * @param numberOfThreads size of the worker pool
+     * @return evolved rois, in the same order as <code>initialRoi</code>
+     */
+    private static Roi[] evolveRoisInParallel(final ImagePlus originalImage, final IntegralImage integralImage, Roi[] initialRoi, final LevelSetParameters sharedParameters, int numberOfThreads) {
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(numberOfThreads, initialRoi.length));
+        try {
+            List<Future<Roi>> futures = new ArrayList<Future<Roi>>(initialRoi.length);
+            for (final Roi roi : initialRoi) {
+                futures.add(executorService.submit(new Callable<Roi>() {
+                    @Override
+                    public Roi call() {
+                        ImagePlus imageView = createImageView(originalImage);
+                        LevelSetParameters levelSetParameters = new LevelSetParameters(sharedParameters);
+                        levelSetParameters.setParametersForCurveEvolution(integralImage, roi);
+                        return evolveRoi(imageView, levelSetParameters);
+                    }
+                }));
+            }
+
+            //gathered in the original order
+            Roi finalRoi[] = new Roi[initialRoi.length];
+            for (int i = 0; i < finalRoi.length; i++) {
+                finalRoi[i] = futures.get(i).get();
+            }
+            return finalRoi;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Curve evolution interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Curve evolution failed", e.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs Level Set on a single roi and converts the resulting segmentation back into a roi
+     * @param originalImage the image on which Level Set is applied
+     * @param levelSetParameters parameters set for the roi that is to be evolved
+     * @return evolved roi
+     */
+    private static Roi evolveRoi(ImagePlus originalImage, LevelSetParameters levelSetParameters) {
+        long start = Metrics.start();
+        ImagePlus result = LevelSetUtility.getSegImage(originalImage, levelSetParameters);
+
+        //to evolved ROI, straight from the mask as this runs on the worker threads
+        Roi evolvedRoi = LevelSetUtility.toRoi(result, levelSetParameters.maskForeground);
+        Metrics.stop("levelset_roi_seconds", start);
+        if (evolvedRoi == null) {
+            Metrics.increment("levelset_vanished_rois");
+        } else {
+            //kept with the roi, so that slow cells can be found later
+            evolvedRoi.setProperty("iterations", String.valueOf(levelSetParameters.getUsedIterations()));
+        }
+        return evolvedRoi;
+    }
+
+    /**
+     * Creates an ImagePlus that shares the pixel data of <code>image</code> but has its own roi and processor state.
+     * The view should be used only for reading.
+     * @param image image whose current slice is to be viewed
+     * @return a lightweight view of the image
+     */
+    private static ImagePlus createImageView(ImagePlus image) {
+        ImageProcessor imageProcessor = image.getProcessor();
+        ImageProcessor viewProcessor = imageProcessor.createProcessor(imageProcessor.getWidth(), imageProcessor.getHeight());
+        viewProcessor.setPixels(imageProcessor.getPixels());
+        ImagePlus view = new ImagePlus(image.getTitle(), viewProcessor);
+        view.setCalibration(image.getCalibration());
+        return view;
     }
 
     /**
-     * Plots all rois in a ROI Manager on an image
-     * @param rm ROI Manager that contains all the rois that needs to be mentioned in the image
+     * Plots all rois on an image
+     * @param rois all the rois that needs to be mentioned in the image
      * @param width width of the resulting image
      * @param height height of the resulting image
      * @return An ImagePlus image with all the rois drwn
      */
-    private static ImagePlus roisToImage(RoiManager rm, int width, int height) {
-        ImagePlus finalImage = NewImage.createImage("Image with all ROIs in it", width, height, 1, 8, NewImage.FILL_BLACK);
-
-        rm.moveRoisToOverlay(finalImage);
-        finalImage.flatten();
-
-        return finalImage;
+    private static ImagePlus roisToImage(Roi[] rois, int width, int height) {
+        return new RoiStore(rois).render(width, height);
     }
 
     /**
      * just another helper function
-     * @return a ParticleAnalyser object that can be used in <code>getEvolvedROIs()</code>
+     * @param particles store into which the rois of the particles are added, in the order they are found
+     * @return a ParticleAnalyser object that can be used in <code>getEvolvedRoiArray()</code>
      */
-    private static ParticleAnalyzer getParticleAnalyzer() {
+    private static ParticleAnalyzer getParticleAnalyzer(final RoiStore particles) {
         //Parameters for ParticleAnalyzer TODO: Research about them
-        int opts = ParticleAnalyzer.ADD_TO_MANAGER;
+        //rois are collected in a RoiStore of this image instead of the RoiManager, so several images can be analysed at the same time
+        int opts = 0;
         //Have used only STD_DEV because I've used only Std Dev
         int meas = Measurements.STD_DEV;
         double minSize = Math.PI * Math.pow((10.0 / 2), 2.0);
         double maxSize = Math.PI * Math.pow((300.0 / 2), 2.0);
-        return new ParticleAnalyzer(opts, meas, new ResultsTable(), minSize, maxSize);
+        return new ParticleAnalyzer(opts, meas, new ResultsTable(), minSize, maxSize) {
+            @Override
+            protected void saveResults(ImageStatistics stats, Roi roi) {
+                super.saveResults(stats, roi);
+                particles.add(roi);
+            }
+        };
     }
 
     /**
@@ -166,101 +383,95 @@ public class LevelSetStage {
      * @return
      */
     private static ImagePlus refineMask(ImagePlus imagePlus, ImagePlus restrictions) {
-        IJ.run(restrictions, "Dilate", "");
-        IJ.run(restrictions, "Dilate", "");
-        IJ.run(restrictions, "Dilate", "");
-        IJ.run(restrictions, "Dilate", "");
+        //same as running Dilate 4 times
+        new BinaryMorphology(restrictions.getWidth(), restrictions.getHeight()).apply(restrictions.getProcessor(),
+                BinaryMorphology.DILATE, BinaryMorphology.DILATE, BinaryMorphology.DILATE, BinaryMorphology.DILATE);
         ImageCalculator imageCalculator = new ImageCalculator();
         return imageCalculator.run("and create", imagePlus, restrictions);
     }
 
     /**
      * Code for analysing and detecting overlapping(intersecting) cell(whose overlap ratio(or intersection ratio) is more than x (0.3).
-     * Those overlapping ROIs index is added to toBeRemoved Set and then removed.
+     * Those overlapping ROIs are found by <code>RoiOverlapResolver</code> and then removed.
      *
      * This results in following improvements:
      *  - Effect of over segmentation is rectified here
      *  - small noise in initial stages are rectifies. small noise evolves into big blocks.
      *
-     * @param rm it is used only for getting image dimensions
-     * @return ROI manager with minimum overlapping Rois
+     * @param rois the evolved rois
+     * @return rois with minimum overlapping, in the same order
+     * @see RoiOverlapResolver
      */
-    private static RoiManager removeOverlappingRois(ImagePlus originalImage, RoiManager rm) {
-
-        //will stores the ROI that are not valid
-        Set<Integer> tobeRemoved = new HashSet<Integer>();
-        int number_of_roi = rm.getCount();
-
-        //loop to go through all possible pair of rois
-        for (int i = 0; i < number_of_roi; i++) {
-            for (int j = 0; j < i; j++) {
-
-                //temp image for passing to upcoming functions
-                ImagePlus roi1ImagePlus = NewImage.createImage("temp image", originalImage.getWidth(), originalImage.getHeight(), 1, 8, NewImage.FILL_WHITE);
-
-                //selects a pair
-                rm.setSelectedIndexes(new int[]{i, j});
-
-                //adds the two roi so that we can find the overlapping region
-                rm.runCommand(roi1ImagePlus, "AND");
+    static Roi[] removeOverlappingRois(Roi[] rois) {
 
-                if (roi1ImagePlus.getRoi() != null) {
-                    //if overlapping region exists
+        //rois that vanished during curve evolution have no selection, they are not added to the store
+        RoiStore evolved = new RoiStore(rois);
 
-                    //ADD operation to get the overlapping portion of roi[i] and roi[j]
-                    rm.runCommand(roi1ImagePlus, "ADD");
-
-                    //Bad Code to get what I want.
-                    //Get area of the intersectiong region
-                    ImageStatistics overlappingRegion = rm.getRoi(rm.getCount() - 1).getStatistics();
-                    tobeRemoved.add(rm.getCount() - 1);
-
-                    //finds the ratio between the area of overlapping portion  of that roi and area of that roi
-                    ImageStatistics region1 = rm.getRoi(i).getStatistics();
-                    ImageStatistics region2 = rm.getRoi(j).getStatistics();
-                    double area1 = overlappingRegion.area / region1.area;
-                    double area2 = overlappingRegion.area / region2.area;
-
-                    IJ.log("area1: " + area1 + ";  area2: " + area2 + " ; name: " + rm.getRoi(rm.getCount() - 1).getName());
+        //will stores the ROI that are not valid
+        long start = Metrics.start();
+        int tobeRemoved[] = new RoiOverlapResolver(evolved).getOverlappingRois();
+        Metrics.stop("levelset_overlap_seconds", start);
+        Metrics.add("levelset_overlapping_rois", tobeRemoved.length);
 
-                    //Removes ROI which have 30% or more of area as an overlapping area
-                    if (area1 > 0.3) {
-                        tobeRemoved.add(i);
-                    } else if (area2 > 0.3) {
-                        tobeRemoved.add(j);
-                    }
-                }
-            }
-        }
+        //Removing overlapping ROIS
+        return evolved.without(tobeRemoved).toArray();
+    }
 
-        //Removing old and overlapping ROIS
-        Object arr[] = tobeRemoved.toArray();
-        int arrInt[] = new int[arr.length];
-        for (int i = 0; i < arr.length; i++) {
-            arrInt[i] = (int) (Integer) arr[i];
-        }
-        rm.setSelectedIndexes(arrInt);
-        rm.runCommand("Delete");
-        //Overlapping ROI have been removed
 
-        return rm;
+    /**
+     *
+     * @param originalImage
+     * @param thresholdImage
+     * @param cellMask
+     * @return
+     */
+    public static ImagePlus apply(ImagePlus originalImage, ImagePlus thresholdImage, ImagePlus cellMask) {
+        return apply(originalImage, thresholdImage, cellMask, 1);
     }
 
+    /**
+     *
+     * @param originalImage
+     * @param thresholdImage
+     * @param cellMask
+     * @param numberOfThreads number of worker threads used for curve evolution
+     * @return
+     */
+    public static ImagePlus apply(ImagePlus originalImage, ImagePlus thresholdImage, ImagePlus cellMask, int numberOfThreads) {
+        return apply(originalImage, thresholdImage, cellMask, new LevelSetParameters(), numberOfThreads);
+    }
 
     /**
      *
      * @param originalImage
      * @param thresholdImage
      * @param cellMask
+     * @param levelSetParameters settings shared by all the rois
+     * @param numberOfThreads number of worker threads used for curve evolution
      * @return
      */
-    public static ImagePlus apply(ImagePlus originalImage, ImagePlus thresholdImage, ImagePlus cellMask) {
-        IJ.run(thresholdImage, "Make Binary", "");
-        IJ.run(cellMask, "Make Binary", "");
-        ImagePlus imagePlus = roisToImage(removeOverlappingRois(originalImage, getEvolvedROIs(originalImage, thresholdImage, cellMask)), originalImage.getWidth(), originalImage.getHeight());
-        RoiManager roiManager = RoiManager.getRoiManager();
-        roiManager.close();
-        return imagePlus;
+    public static ImagePlus apply(ImagePlus originalImage, ImagePlus thresholdImage, ImagePlus cellMask, LevelSetParameters levelSetParameters, int numberOfThreads) {
+        Roi[] rois = getFinalRois(originalImage, thresholdImage, cellMask, levelSetParameters, numberOfThreads);
+        return roisToImage(rois, originalImage.getWidth(), originalImage.getHeight());
+    }
+
+    /**
+     * Same as <code>apply(ImagePlus, ImagePlus, ImagePlus, LevelSetParameters, int)</code> but returns the rois instead of drawing them
+     * @return evolved rois without the overlapping ones
+     */
+    static Roi[] getFinalRois(ImagePlus originalImage, ImagePlus thresholdImage, ImagePlus cellMask, LevelSetParameters levelSetParameters, int numberOfThreads) {
+        BinaryMorphology.makeBinary(thresholdImage);
+        BinaryMorphology.makeBinary(cellMask);
+        return removeOverlappingRois(getEvolvedRoiArray(originalImage, thresholdImage, cellMask, levelSetParameters, numberOfThreads));
+    }
+
+    /**
+     * Same as <code>apply(ImagePlus, ImagePlus, ImagePlus, LevelSetParameters, int)</code> for the next frame of a time-lapse, started from the contours of the previous frame
+     * @see TimeLapseTracker
+     */
+    public static ImagePlus apply(ImagePlus originalImage, ImagePlus thresholdImage, ImagePlus cellMask, LevelSetParameters levelSetParameters, int numberOfThreads, TimeLapseTracker timeLapseTracker) {
+        Roi[] rois = timeLapseTracker.track(originalImage, thresholdImage, cellMask, levelSetParameters, numberOfThreads);
+        return roisToImage(rois, originalImage.getWidth(), originalImage.getHeight());
     }
 
     public static void main(String[] args) {
@@ -292,36 +503,283 @@ public class LevelSetStage {
      *     <li>All the three folder have the same number of images</li>
      *     <li>They have the same name and sorting them would result in corresponding images in same index</li>
      * </ul>
+     * @return number of images that failed, including the ones whose result could not be written
      */
-    public void apply() {
+    public int apply() {
 
-        String[] originalImageList = new File(this.orginalImageDir).list();
-        String[] cellMaskList = new File(this.cellMaskDir).list();
-        String[] thresholdList = new File(this.thresholdImageDir).list();
+        final List<File> originalImages = BatchExecutor.listFiles(this.orginalImageDir);
+        final List<File> cellMasks = BatchExecutor.listFiles(this.cellMaskDir);
+        final List<File> thresholds = BatchExecutor.listFiles(this.thresholdImageDir);
 
-        Arrays.sort(originalImageList);
-        Arrays.sort(cellMaskList);
-        Arrays.sort(thresholdList);
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (int i = 0; i < originalImages.size(); i++) {
+            indexes.add(i);
+        }
+
+        final BatchManifest batchManifest = new BatchManifest(outputImageDir);
+        final String parameterHash = BatchManifest.hash(getParameterDescription());
+
+        //the next images are read while the current one is evolved, and results are written while the next one is evolved.
+        //With a work queue it is not known ahead which images this process gets, so nothing is read ahead
+        final Prefetcher<Integer, ImageSet> prefetcher = readAhead <= 0 || workQueue != null ? null : new Prefetcher<Integer, ImageSet>(indexes, new Prefetcher.Loader<Integer, ImageSet>() {
+            @Override
+            public ImageSet load(Integer i) throws IOException {
+                return read(originalImages.get(i), cellMasks.get(i), thresholds.get(i), batchManifest, parameterHash);
+            }
+        }, readAhead, Math.min(readAhead, numberOfImages));
+        //an image is marked done in the work queue when its task returns, so with a work queue it must be written by then
+        final AsyncWriter asyncWriter = writerThreads <= 0 || workQueue != null ? null : new AsyncWriter(writerThreads, Math.max(writerThreads, readAhead));
+
+        // rois of every image are kept in its own RoiStore, so images can be processed at the same time, except the frames of a time-lapse.
+        // An image that fails does not stop the rest of the folder
+        BatchExecutor<Integer> batchExecutor = new BatchExecutor<Integer>(timeLapseTracker != null ? 1 : numberOfImages);
+        batchExecutor.setMemoryBudget(MemoryBudget.getDefault(), new BatchExecutor.Footprint<Integer>() {
+            @Override
+            public long estimate(Integer i) {
+                return MemoryBudget.estimate(originalImages.get(i), WORKING_COPIES);
+            }
+        });
+        if (workQueue != null) {
+            batchExecutor.setWorkQueue(workQueue, new BatchExecutor.ItemName<Integer>() {
+                @Override
+                public String getName(Integer i) {
+                    return originalImages.get(i).getName();
+                }
+            });
+        }
+        List<BatchExecutor.Failure<Integer>> failures;
+        int writeFailures = 0;
+        try {
+            failures = batchExecutor.execute(indexes, new BatchExecutor.Task<Integer>() {
+                @Override
+                public void process(Integer i) throws Exception {
+                    final ImageSet imageSet = prefetcher != null ? prefetcher.get(i)
+                            : read(originalImages.get(i), cellMasks.get(i), thresholds.get(i), batchManifest, parameterHash);
+                    if (imageSet.upToDate) {
+                        Metrics.increment("levelset_skipped");
+                        //the contours of a skipped frame are not known
+                        resetTimeLapse();
+                        return;
+                    }
 
-        for (int i = 0; i < originalImageList.length; i++) {
+                    final ImagePlus finalResult;
+                    try {
+                        finalResult = evolve(imageSet);
+                    } catch (Exception e) {
+                        resetTimeLapse();
+                        throw e;
+                    }
 
-            System.out.println(originalImageList[i]);
-            System.out.println(cellMaskList[i]);
-            System.out.println(thresholdList[i]);
+                    final String outputName = imageSet.originalImage.getName();
+                    if (asyncWriter == null) {
+                        if (!save(finalResult, outputName)) {
+                            //failed writes of the async writer are counted when it is closed
+                            Metrics.increment("levelset_failures");
+                            throw new IOException("Not able to save " + outputName);
+                        }
+                        batchManifest.record(outputName, imageSet.inputHash, parameterHash);
+                        return;
+                    }
+                    asyncWriter.submit(outputName, new AsyncWriter.Write() {
+                        @Override
+                        public void write() throws IOException {
+                            if (!save(finalResult, outputName)) {
+                                throw new IOException("Not able to save " + outputName);
+                            }
+                            batchManifest.record(outputName, imageSet.inputHash, parameterHash);
+                        }
+                    });
+                }
+            });
+        } finally {
+            if (prefetcher != null) {
+                prefetcher.close();
+            }
+            //the writer threads are not daemons, the pending writes must be flushed whatever happened
+            if (asyncWriter != null) {
+                writeFailures = close(asyncWriter);
+            }
+        }
+        return BatchExecutor.report("Level Set", failures) + writeFailures;
+    }
 
+    /**
+     * Waits for the pending writes of asyncWriter and counts the ones that failed
+     */
+    private static int close(AsyncWriter asyncWriter) {
+        try {
+            int failures = asyncWriter.close();
+            if (failures > 0) {
+                IJ.log(failures + " results of Level Set could not be written");
+                Metrics.add("levelset_failures", failures);
+            }
+            return failures;
+        } catch (InterruptedException e) {
+            //the writes that were queued still finish, the threads stop after them
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
 
-            ImagePlus orgIm = IJ.openImage(orginalImageDir + originalImageList[i]);
-            ImagePlus cellMask = IJ.openImage(cellMaskDir + cellMaskList[i]);
-            ImagePlus thresholdIm = IJ.openImage(thresholdImageDir + thresholdList[i]);
+    /**
+     * Reads one set of corresponding images. The images are not read if the output is up to date
+     */
+    private ImageSet read(File originalImage, File cellMaskImage, File thresholdImage, BatchManifest batchManifest, String parameterHash) throws IOException {
+        ImageSet imageSet = new ImageSet();
+        imageSet.originalImage = originalImage;
+        imageSet.inputHash = BatchManifest.hash(originalImage, cellMaskImage, thresholdImage);
+        if (incremental && batchManifest.isUpToDate(originalImage.getName(), imageSet.inputHash, parameterHash)) {
+            imageSet.upToDate = true;
+            return imageSet;
+        }
 
+        long start = Metrics.start();
+        imageSet.original = IJ.openImage(originalImage.getAbsolutePath());
+        imageSet.cellMask = IJ.openImage(cellMaskImage.getAbsolutePath());
+        imageSet.threshold = IJ.openImage(thresholdImage.getAbsolutePath());
+        Metrics.stop("levelset_read_seconds", start);
+        return imageSet;
+    }
 
-            ImagePlus finalResult = LevelSetStage.apply(orgIm, cellMask, thresholdIm);
-            new FileSaver(finalResult).saveAsJpeg(outputImageDir + File.separator + originalImageList[i]);
-            System.gc();
+    /**
+     * Applies the stage on one set of corresponding images
+     * @return image with the outlines of the evolved rois
+     */
+    private ImagePlus evolve(ImageSet imageSet) {
+        long start = Metrics.start();
+        ImagePlus finalResult;
+        if (timeLapseTracker != null) {
+            finalResult = LevelSetStage.apply(imageSet.original, imageSet.threshold, imageSet.cellMask, levelSetParameters, numberOfThreads, timeLapseTracker);
+        } else {
+            finalResult = LevelSetStage.apply(imageSet.original, imageSet.threshold, imageSet.cellMask, levelSetParameters, numberOfThreads);
+        }
+        Metrics.stop("levelset_process_seconds", start);
+        return finalResult;
+    }
 
+    /**
+     * Saves a result in <code>outputImageDir</code>
+     * @return true if the result was written
+     */
+    private boolean save(ImagePlus finalResult, String outputName) {
+        long start = Metrics.start();
+        boolean saved = new FileSaver(finalResult).saveAsJpeg(outputImageDir + File.separator + outputName);
+        Metrics.stop("levelset_write_seconds", start);
+        if (saved) {
+            Metrics.increment("levelset_images");
         }
+        return saved;
     }
 
+    /**
+     * Describes the settings that change the output of <code>apply()</code>, for the manifest of the output folder
+     */
+    private String getParameterDescription() {
+        //"inputs 2": outputs made while the threshold image and the cell mask were passed the other way round are made again.
+        //"narrow-band-tiers": the same for the narrow band outputs made with the parameters of ActiveContours
+        return "levelset inputs 2 " + levelSetParameters.isCropToRoi() + " " + levelSetParameters.getCropPadding() + " " + (levelSetParameters.isNarrowBand() ? "narrow-band-tiers" : "false")
+                + " " + levelSetParameters.isAdaptiveStepping() + " " + levelSetParameters.getPlateauChange()
+                + " " + levelSetParameters.getStepLimit() + " " + (timeLapseTracker == null ? "false" : timeLapseTracker.getParameterDescription());
+    }
+
+    private void resetTimeLapse() {
+        if (timeLapseTracker != null) {
+            timeLapseTracker.reset();
+        }
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @param incremental if true, <code>apply()</code> skips the images whose output is up to date. If false, all images are processed again
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    /**
+     * @param numberOfThreads number of worker threads used for evolving the rois of an image. 1 means serial evolution
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    public boolean isTimeLapse() {
+        return timeLapseTracker != null;
+    }
+
+    /**
+     * @param timeLapse if true, the images(in the order of their names) are taken as the frames of a time-lapse, and every frame is started
+     *                  from the contours of the previous one
+     * @see TimeLapseTracker
+     */
+    public void setTimeLapse(boolean timeLapse) {
+        this.timeLapseTracker = timeLapse ? new TimeLapseTracker() : null;
+    }
+
+    /**
+     * @return tracker used in time-lapse mode, for changing its settings. null if time-lapse mode is off
+     */
+    public TimeLapseTracker getTimeLapseTracker() {
+        return timeLapseTracker;
+    }
+
+    public int getNumberOfImages() {
+        return numberOfImages;
+    }
+
+    /**
+     * @param numberOfImages number of images processed at the same time by <code>apply()</code>, each with <code>numberOfThreads</code> workers for its rois
+     */
+    public void setNumberOfImages(int numberOfImages) {
+        this.numberOfImages = numberOfImages;
+    }
+
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * @param readAhead number of sets of images read in the background ahead of the one being evolved. 0 reads every set when it is needed
+     */
+    public void setReadAhead(int readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    public int getWriterThreads() {
+        return writerThreads;
+    }
+
+    /**
+     * @param writerThreads number of threads that encode and write the results in the background. 0 writes every result on the thread that made it. Not used with a work queue
+     */
+    public void setWriterThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+    }
+
+    public WorkQueue getWorkQueue() {
+        return workQueue;
+    }
+
+    /**
+     * @param workQueue queue shared with other processes working on the same folders, null to do all the images. Disables read-ahead
+     */
+    public void setWorkQueue(WorkQueue workQueue) {
+        this.workQueue = workQueue;
+    }
+
+    /**
+     * @return settings shared by all the rois. Changes made to it are used by the next call to <code>apply()</code>
+     */
+    public LevelSetParameters getLevelSetParameters() {
+        return levelSetParameters;
+    }
 
     /*
 Helps to make GUI form
@@ -379,4 +837,20 @@ Helps to make GUI form
         panel.add(jTextField);
         return panel;
     }
+
+    /**
+     * One set of corresponding images, as read by <code>apply()</code>
+     */
+    private static class ImageSet {
+        private File originalImage;
+        private String inputHash;
+
+        /**
+         * true if the output is up to date. Then the images are not read
+         */
+        private boolean upToDate;
+        private ImagePlus original;
+        private ImagePlus cellMask;
+        private ImagePlus threshold;
+    }
 }
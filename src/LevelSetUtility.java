@@ -2,6 +2,7 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.Roi;
+import ij.plugin.filter.ThresholdToSelection;
 import ij.process.ImageProcessor;
 import levelsets.algorithm.ActiveContours;
 import levelsets.algorithm.LevelSetImplementation;
@@ -9,6 +10,8 @@ import levelsets.ij.ImageContainer;
 import levelsets.ij.ImageProgressContainer;
 import levelsets.ij.StateContainer;
 
+import java.awt.*;
+
 /**
  * LevelSetUtility is a wrapper for LevelSet plugin offered as ImageJ plugin.
  *
@@ -34,11 +37,42 @@ public class LevelSetUtility {
         return getSegImage(originalImage, roi, convergence, advection, curvature, grey_tol, expandToInside, max_iteration, step_iteration, false);
     }
 
+    /**
+     * Evolves <code>levelSetParameters.getRoi()</code> with the engine, window and step schedule selected in <code>levelSetParameters</code>.
+     * The number of iterations used is stored in <code>levelSetParameters</code>(see <code>getUsedIterations()</code>).
+     */
     public static ImagePlus getSegImage(ImagePlus originalImage, LevelSetParameters levelSetParameters) {
-        return getSegImage(originalImage, levelSetParameters.roi, levelSetParameters.convergence, levelSetParameters.advection, levelSetParameters.curvature, levelSetParameters.grey_tol, levelSetParameters.expandToInside, levelSetParameters.max_iteration, levelSetParameters.step_iteration, levelSetParameters.getProgressReport);
+        StepSchedule stepSchedule = levelSetParameters.adaptiveStepping
+                ? StepSchedule.adaptive(levelSetParameters.max_iteration, levelSetParameters.step_iteration, levelSetParameters.plateauChange)
+                : StepSchedule.fixed(levelSetParameters.max_iteration, levelSetParameters.step_iteration);
+
+        ImagePlus seg;
+        if (levelSetParameters.narrowBand && !levelSetParameters.getProgressReport) {
+            seg = getSegImageNarrowBand(originalImage, levelSetParameters.roi, levelSetParameters.narrowBandConvergence, levelSetParameters.advection, levelSetParameters.curvature, levelSetParameters.narrowBandGrey_tol, levelSetParameters.expandToInside, stepSchedule, "levelset", levelSetParameters.maskForeground);
+        } else if (levelSetParameters.cropToRoi && !levelSetParameters.expandToInside && !levelSetParameters.getProgressReport) {
+            seg = getSegImageCropped(originalImage, levelSetParameters.roi, levelSetParameters.convergence, levelSetParameters.advection, levelSetParameters.curvature, levelSetParameters.grey_tol, levelSetParameters.cropPadding, stepSchedule);
+        } else {
+            seg = getSegImage(originalImage, levelSetParameters.roi, levelSetParameters.convergence, levelSetParameters.advection, levelSetParameters.curvature, levelSetParameters.grey_tol, levelSetParameters.expandToInside, levelSetParameters.getProgressReport, stepSchedule);
+        }
+        levelSetParameters.usedIterations = stepSchedule.getUsedIterations();
+        return seg;
     }
 
     public static ImagePlus getSegImage(ImagePlus originalImage, Roi roi, double convergence, double advection, double curvature, double grey_tol, boolean expandToInside, int max_iteration, int step_iteration, boolean getProgressReport) {
+        return getSegImage(originalImage, roi, convergence, advection, curvature, grey_tol, expandToInside, getProgressReport, StepSchedule.fixed(max_iteration, step_iteration));
+    }
+
+    /**
+     * Evolves roi with <code>ActiveContours</code>, stepping it as <code>stepSchedule</code> says
+     */
+    public static ImagePlus getSegImage(ImagePlus originalImage, Roi roi, double convergence, double advection, double curvature, double grey_tol, boolean expandToInside, boolean getProgressReport, StepSchedule stepSchedule) {
+        return getSegImage(originalImage, roi, convergence, advection, curvature, grey_tol, expandToInside, getProgressReport, stepSchedule, "levelset");
+    }
+
+    /**
+     * Same as above, recording how the schedule went under <code>metricPrefix</code>, eg. "boundry" for <code>EmbryoBoundryDetection</code>
+     */
+    public static ImagePlus getSegImage(ImagePlus originalImage, Roi roi, double convergence, double advection, double curvature, double grey_tol, boolean expandToInside, boolean getProgressReport, StepSchedule stepSchedule, String metricPrefix) {
         originalImage.setRoi(roi);
         //creating ImageContainer
         ImageContainer ic = new ImageContainer(originalImage);
@@ -58,13 +92,28 @@ public class LevelSetUtility {
 
         //For which side to evolve. False implies that it will expand to Outside.
         sc_roi.setExpansionToInside(expandToInside);
-        LevelSetImplementation ls = new ActiveContours(ic, progressImage, sc_roi, convergence, advection, curvature, grey_tol);
+        final LevelSetImplementation ls = new ActiveContours(ic, progressImage, sc_roi, convergence, advection, curvature, grey_tol);
 
-        for (int iter = 0; iter < max_iteration; iter++) {
-            if (!ls.step(step_iteration)) {
-                break;
+        final int slice = originalImage.getCurrentSlice();
+        run(stepSchedule, new StepSchedule.Evolution() {
+            @Override
+            public boolean step(int iterations) {
+                return ls.step(iterations);
             }
-        }
+
+            @Override
+            public long getArea() {
+                //number of non zero pixels, the schedule does not care which side that is
+                ImageProcessor mask = ls.getStateContainer().getIPMask()[slice - 1];
+                long area = 0;
+                for (int i = 0, n = mask.getPixelCount(); i < n; i++) {
+                    if (mask.get(i) != 0) {
+                        area++;
+                    }
+                }
+                return area;
+            }
+        }, (long) ic.getWidth() * ic.getHeight(), metricPrefix);
         StateContainer sc_final = ls.getStateContainer();
 
         // Convert sc_final into binary image ImageContainer and display
@@ -81,4 +130,207 @@ public class LevelSetUtility {
 
         return seg;
     }
+
+    /**
+     * Same as <code>getSegImage</code>, but the roi is evolved by <code>NarrowBandActiveContours</code>, which only works near the contour.
+     * Only the current slice of <code>originalImage</code> is used, stacks are evolved with <code>getSegImage</code>.
+     * Note that <code>grey_tol</code> and <code>convergence</code> do not mean the same as for <code>getSegImage</code>(see <code>NarrowBandActiveContours</code>).
+     *
+     * @param originalImage the original image
+     * @param roi initial contour
+     * @param grey_tol standard deviations of the start region, not grey levels
+     * @param convergence fraction of the area that may change during one step
+     * @return binary image, of the size of originalImage, with the evolved contour as foreground
+     * @see NarrowBandActiveContours
+     */
+    public static ImagePlus getSegImageNarrowBand(ImagePlus originalImage, Roi roi, double convergence, double advection, double curvature, double grey_tol, boolean expandToInside, int max_iteration, int step_iteration) {
+        return getSegImageNarrowBand(originalImage, roi, convergence, advection, curvature, grey_tol, expandToInside, StepSchedule.fixed(max_iteration, step_iteration));
+    }
+
+    /**
+     * Evolves roi with <code>NarrowBandActiveContours</code>, stepping it as <code>stepSchedule</code> says
+     */
+    public static ImagePlus getSegImageNarrowBand(ImagePlus originalImage, Roi roi, double convergence, double advection, double curvature, double grey_tol, boolean expandToInside, StepSchedule stepSchedule) {
+        return getSegImageNarrowBand(originalImage, roi, convergence, advection, curvature, grey_tol, expandToInside, stepSchedule, "levelset");
+    }
+
+    /**
+     * Same as above, recording how the schedule went under <code>metricPrefix</code>, eg. "boundry" for <code>EmbryoBoundryDetection</code>
+     */
+    public static ImagePlus getSegImageNarrowBand(ImagePlus originalImage, Roi roi, double convergence, double advection, double curvature, double grey_tol, boolean expandToInside, StepSchedule stepSchedule, String metricPrefix) {
+        return getSegImageNarrowBand(originalImage, roi, convergence, advection, curvature, grey_tol, expandToInside, stepSchedule, metricPrefix, BinaryMorphology.getDefaultForeground());
+    }
+
+    /**
+     * Same as above, with <code>foreground</code>(0 or 255) as the value of the px inside the contour
+     */
+    public static ImagePlus getSegImageNarrowBand(ImagePlus originalImage, Roi roi, double convergence, double advection, double curvature, double grey_tol, boolean expandToInside, StepSchedule stepSchedule, String metricPrefix, int foreground) {
+        if (originalImage.getStackSize() > 1) {
+            return getSegImage(originalImage, roi, convergence, advection, curvature, grey_tol, expandToInside, false, stepSchedule, metricPrefix);
+        }
+        final NarrowBandActiveContours ls = new NarrowBandActiveContours(originalImage.getProcessor(), roi, convergence, advection, curvature, grey_tol, expandToInside);
+
+        run(stepSchedule, new StepSchedule.Evolution() {
+            @Override
+            public boolean step(int iterations) {
+                return ls.step(iterations);
+            }
+
+            @Override
+            public long getArea() {
+                return ls.getArea();
+            }
+        }, (long) originalImage.getWidth() * originalImage.getHeight(), metricPrefix);
+
+        ImageStack stack = new ImageStack(originalImage.getWidth(), originalImage.getHeight());
+        stack.addSlice(null, ls.getMask(foreground));
+        ImagePlus seg = originalImage.createImagePlus();
+        seg.setStack("Segmentation of " + originalImage.getTitle(), stack);
+        return seg;
+    }
+
+    /**
+     * Evolves <code>roi</code> outwards inside a window made of the bounds of the roi grown by <code>padding</code>, instead of the whole image.
+     * If the evolved contour reaches an edge of the window(that is not an edge of the image), the padding is doubled and the roi is evolved again.
+     * The result is mapped back to the coordinates of <code>originalImage</code>, so it can be used in place of <code>getSegImage</code>.
+     *
+     * Only the current slice of <code>originalImage</code> is used. Stacks and rois whose window would cover the whole image are evolved with <code>getSegImage</code>.
+     *
+     * @param originalImage the original image
+     * @param roi roi that represents interior region of a particular cell
+     * @param padding initial padding(in px) around the bounds of the roi
+     * @return binary image, of the size of originalImage, with the segmentation of the roi
+     */
+    public static ImagePlus getSegImageCropped(ImagePlus originalImage, Roi roi, double convergence, double advection, double curvature, double grey_tol, int max_iteration, int step_iteration, int padding) {
+        return getSegImageCropped(originalImage, roi, convergence, advection, curvature, grey_tol, padding, StepSchedule.fixed(max_iteration, step_iteration));
+    }
+
+    /**
+     * Same as <code>getSegImageCropped</code> above, stepping the level set as <code>stepSchedule</code> says. Every window gets the full budget of the schedule
+     */
+    public static ImagePlus getSegImageCropped(ImagePlus originalImage, Roi roi, double convergence, double advection, double curvature, double grey_tol, int padding, StepSchedule stepSchedule) {
+        int width = originalImage.getWidth();
+        int height = originalImage.getHeight();
+        Rectangle imageBounds = new Rectangle(0, 0, width, height);
+        Rectangle roiBounds = roi.getBounds();
+        Point seed = getSeedPixel(roi);
+
+        padding = Math.max(1, padding);
+        while (originalImage.getStackSize() == 1 && seed != null) {
+            Rectangle window = new Rectangle(roiBounds);
+            window.grow(padding, padding);
+            window = window.intersection(imageBounds);
+            if (window.width == width && window.height == height) {
+                break;
+            }
+
+            ImageProcessor imageProcessor = originalImage.getProcessor();
+            imageProcessor.setRoi(window);
+            ImagePlus windowImage = new ImagePlus(originalImage.getTitle(), imageProcessor.crop());
+            imageProcessor.resetRoi();
+
+            Roi windowRoi = (Roi) roi.clone();
+            windowRoi.setLocation(roiBounds.x - window.x, roiBounds.y - window.y);
+            ImageProcessor windowMask = getSegImage(windowImage, windowRoi, convergence, advection, curvature, grey_tol, false, false, stepSchedule).getProcessor();
+
+            // the seed stays inside the contour while it expands, so it tells which value marks the segmented region
+            int foreground = windowMask.get(seed.x - window.x, seed.y - window.y);
+            if (touchesWindowEdge(windowMask, window, imageBounds, foreground)) {
+                Metrics.increment("levelset_window_retries");
+                padding *= 2;
+                continue;
+            }
+
+            //map the result back to the original image
+            ImageProcessor mask = windowMask.createProcessor(width, height);
+            mask.setValue(255 - foreground);
+            mask.fill();
+            mask.insert(windowMask, window.x, window.y);
+
+            ImageStack stack = new ImageStack(width, height);
+            stack.addSlice(null, mask);
+            ImagePlus seg = originalImage.createImagePlus();
+            seg.setStack("Segmentation of " + originalImage.getTitle(), stack);
+            return seg;
+        }
+        return getSegImage(originalImage, roi, convergence, advection, curvature, grey_tol, false, false, stepSchedule);
+    }
+
+    /**
+     * Turns a segmentation into a roi like "Create Selection" does, but straight on the processor. "Create Selection" goes through the
+     * command dispatch and reads <code>Prefs.blackBackground</code>, so it should not be run by the workers that evolve the rois.
+     * @param seg segmentation made by one of the <code>getSegImage</code> methods, its current slice is used
+     * @param foreground value of the px inside the contour for a normal LUT(see <code>LevelSetParameters.getMaskForeground()</code>)
+     * @return the contour, or null if no px is inside it
+     */
+    public static Roi toRoi(ImagePlus seg, int foreground) {
+        ImageProcessor mask = seg.getProcessor();
+        return selectPixels(mask, mask.isInvertedLut() ? 255 - foreground : foreground);
+    }
+
+    /**
+     * @param mask binary image
+     * @param value px value to be selected, whatever the LUT is
+     * @return roi of the px of <code>mask</code> that have this value, or null if there are none
+     */
+    public static Roi selectPixels(ImageProcessor mask, int value) {
+        mask.setThreshold(value, value, ImageProcessor.NO_LUT_UPDATE);
+        Roi roi = new ThresholdToSelection().convert(mask);
+        mask.resetThreshold();
+        return roi;
+    }
+
+    /*
+    runs the schedule and records how it went, under metricPrefix
+     */
+    private static void run(StepSchedule stepSchedule, StepSchedule.Evolution evolution, long totalArea, String metricPrefix) {
+        int steps = stepSchedule.getSteps();
+        int iterations = stepSchedule.getUsedIterations();
+        if (stepSchedule.run(evolution, totalArea)) {
+            Metrics.increment(metricPrefix + "_converged");
+        }
+        //number of calls to step()(each of up to step_iteration iterations) and of iterations of this run
+        Metrics.observe(metricPrefix + "_step_calls", stepSchedule.getSteps() - steps);
+        Metrics.observe(metricPrefix + "_iterations", stepSchedule.getUsedIterations() - iterations);
+    }
+
+    /**
+     * @return a pixel(in image coordinates) that lies inside roi, or null if roi does not contain any pixel
+     */
+    private static Point getSeedPixel(Roi roi) {
+        Rectangle bounds = roi.getBounds();
+        ImageProcessor roiMask = roi.getMask();
+        if (roiMask == null) {
+            return bounds.width > 0 && bounds.height > 0 ? new Point(bounds.x, bounds.y) : null;
+        }
+        for (int y = 0; y < bounds.height; y++) {
+            for (int x = 0; x < bounds.width; x++) {
+                if (roiMask.get(x, y) != 0) {
+                    return new Point(bounds.x + x, bounds.y + y);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if the segmented region touches an edge of the window that is not an edge of the image as well
+     */
+    private static boolean touchesWindowEdge(ImageProcessor windowMask, Rectangle window, Rectangle imageBounds, int foreground) {
+        int lastX = window.width - 1;
+        int lastY = window.height - 1;
+        for (int x = 0; x <= lastX; x++) {
+            if ((window.y > 0 && windowMask.get(x, 0) == foreground)
+                    || (window.y + window.height < imageBounds.height && windowMask.get(x, lastY) == foreground)) {
+                return true;
+            }
+        }
+        for (int y = 0; y <= lastY; y++) {
+            if ((window.x > 0 && windowMask.get(0, y) == foreground)
+                    || (window.x + window.width < imageBounds.width && windowMask.get(lastX, y) == foreground)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
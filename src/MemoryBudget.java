@@ -0,0 +1,156 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * <code>MemoryBudget</code> decides when a new image can be taken up, from an estimate of how much memory the images being processed use.
+ * Work is admitted only while the estimated live bytes fit in the budget, so large images do not exhaust the heap and
+ * there is no need to force garbage collection after each image.
+ *
+ * One piece of work is always admitted when nothing else is running, even if it is larger than the budget.
+ *
+ * @see BatchExecutor
+ */
+public class MemoryBudget {
+
+    /**
+     * fraction of the maximum heap used by <code>getDefault()</code>
+     */
+    public static final double DEFAULT_HEAP_FRACTION = 0.75;
+
+    private static final MemoryBudget defaultBudget = new MemoryBudget((long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION));
+
+    private final long budget;
+    private long used = 0;
+
+    /**
+     * @param budget number of bytes that can be in use at the same time
+     */
+    public MemoryBudget(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return budget shared by all the stages of this process, <code>DEFAULT_HEAP_FRACTION</code> of the maximum heap
+     */
+    public static MemoryBudget getDefault() {
+        return defaultBudget;
+    }
+
+    /**
+     * Waits until <code>bytes</code> fit in the budget and then reserves them
+     * @param bytes estimated footprint of the work
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        while (used > 0 && used + bytes > budget) {
+            wait();
+        }
+        used += bytes;
+    }
+
+    /**
+     * Gives back bytes reserved by <code>acquire</code>
+     * @param bytes same value as passed to <code>acquire</code>
+     */
+    public synchronized void release(long bytes) {
+        used -= bytes;
+        notifyAll();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * @param width width of the image
+     * @param height height of the image
+     * @param bitDepth 8, 16, 24(RGB) or 32
+     * @param slices number of slices
+     * @return number of bytes used by the pixels of the image
+     */
+    public static long estimate(int width, int height, int bitDepth, int slices) {
+        int bytesPerPixel = bitDepth == 24 ? 4 : Math.max(1, bitDepth / 8);
+        return (long) width * height * bytesPerPixel * slices;
+    }
+
+    /**
+     * Estimates the memory needed for processing an image file, without decoding the file.
+     * Only the header of the file is read, the decoded image is taken at the bit depth given there.
+     * If the dimensions can not be read, the size of the file is used instead.
+     *
+     * @param imageFile image file
+     * @param workingCopies number of images of the same size and bit depth that are alive while the image is processed
+     * @return estimated footprint in bytes
+     */
+    public static long estimate(File imageFile, int workingCopies) {
+        int[] dimensions = getDimensions(imageFile);
+        if (dimensions == null) {
+            return imageFile.length() * workingCopies;
+        }
+        return estimate(dimensions[0], dimensions[1], dimensions[3], dimensions[2]) * workingCopies;
+    }
+
+    /**
+     * Reads the dimensions and the bit depth of an image file from its header
+     * @param imageFile image file
+     * @return {width, height, number of slices, bit depth as ImageJ opens it(8, 16, 24 or 32)} or null if they could not be read
+     */
+    public static int[] getDimensions(File imageFile) {
+        try {
+            if (FloatImageIO.isFloatImage(imageFile)) {
+                int[] dimensions = FloatImageIO.getDimensions(imageFile);
+                return new int[]{dimensions[0], dimensions[1], dimensions[2], 32};
+            }
+            ImageInputStream inputStream = ImageIO.createImageInputStream(imageFile);
+            if (inputStream == null) {
+                return null;
+            }
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(inputStream);
+                if (!readers.hasNext()) {
+                    return null;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(inputStream, true, true);
+                    return new int[]{reader.getWidth(0), reader.getHeight(0), 1, getBitDepth(reader)};
+                } finally {
+                    reader.dispose();
+                }
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /*
+    bit depth of the first image of reader as ImageJ opens it: colour images as RGB, grey ones by their sample size.
+    32 if the type can not be told from the header
+     */
+    private static int getBitDepth(ImageReader reader) throws IOException {
+        ImageTypeSpecifier type = reader.getRawImageType(0);
+        if (type == null) {
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            if (!types.hasNext()) {
+                return 32;
+            }
+            type = types.next();
+        }
+        if (type.getNumBands() >= 3) {
+            return 24;
+        }
+        int sampleSize = type.getSampleModel().getSampleSize(0);
+        return sampleSize <= 8 ? 8 : sampleSize <= 16 ? 16 : 32;
+    }
+}
@@ -0,0 +1,295 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>Metrics</code> collects timers, counters and histograms from the stages, so that one can see where the time of a run goes.
+ *
+ * Metrics are off by default. While they are off every call returns right away without allocating anything, so the stages can
+ * call them unconditionally. A timer is used like this:
+ * <pre>
+ * long start = Metrics.start();
+ * ...
+ * Metrics.stop("levelset_evolve_seconds", start);
+ * </pre>
+ * Timers are histograms of seconds. Counters only go up. Everything can be written as a JSON summary(<code>writeJson</code>)
+ * or in the Prometheus text format(<code>writePrometheus</code>), eg. for the textfile collector of node_exporter.
+ *
+ * All methods are safe to call from several threads.
+ */
+public class Metrics {
+
+    /**
+     * prefix of every metric in the Prometheus output
+     */
+    private static final String PREFIX = "embryo_";
+
+    /**
+     * returned by <code>start()</code> while metrics are off
+     */
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+
+    /**
+     * upper bounds of the buckets of timers(in seconds)
+     */
+    private static final double[] TIME_BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 60};
+
+    /**
+     * upper bounds of the buckets of other histograms(counts like rois per image or iterations per roi)
+     */
+    private static final double[] COUNT_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    private static volatile boolean enabled = false;
+
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    private Metrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns the collection on or off. Values collected so far are kept.
+     */
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * Drops all values collected so far
+     */
+    public static void reset() {
+        counters.clear();
+        histograms.clear();
+    }
+
+    /**
+     * @return start time of a timer, to be passed to <code>stop</code>
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : NOT_STARTED;
+    }
+
+    /**
+     * Records the time since <code>start</code> in the timer <code>name</code>
+     * @param name  name of the timer, should end with <code>_seconds</code>
+     * @param start value returned by <code>start()</code>
+     */
+    public static void stop(String name, long start) {
+        if (start != NOT_STARTED && enabled) {
+            histogram(name, TIME_BUCKETS).observe((System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long delta) {
+        if (enabled) {
+            AtomicLong counter = counters.get(name);
+            if (counter == null) {
+                AtomicLong newCounter = new AtomicLong();
+                counter = counters.putIfAbsent(name, newCounter);
+                if (counter == null) {
+                    counter = newCounter;
+                }
+            }
+            counter.addAndGet(delta);
+        }
+    }
+
+    /**
+     * Adds <code>value</code> to the histogram <code>name</code>. Meant for counts, like the number of rois in an image.
+     */
+    public static void observe(String name, double value) {
+        if (enabled) {
+            histogram(name, COUNT_BUCKETS).observe(value);
+        }
+    }
+
+    /**
+     * @return current value of counter <code>name</code>, 0 if it was never incremented
+     */
+    public static long getCount(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * @return number of values added to histogram(or timer) <code>name</code>
+     */
+    public static long getObservations(String name) {
+        Histogram histogram = histograms.get(name);
+        return histogram == null ? 0 : histogram.snapshot().count;
+    }
+
+    private static Histogram histogram(String name, double[] buckets) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram(buckets);
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return all metrics as a JSON object with a <code>counters</code> and a <code>histograms</code> member.
+     * Bucket counts are cumulative, like in Prometheus.
+     */
+    public static String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"counters\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Long> counter : counterValues().entrySet()) {
+            json.append(separator).append("    \"").append(counter.getKey()).append("\": ").append(counter.getValue());
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"histograms\": {");
+        separator = "\n";
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue().snapshot();
+            json.append(separator).append("    \"").append(entry.getKey()).append("\": {")
+                    .append("\"count\": ").append(histogram.count)
+                    .append(", \"sum\": ").append(number(histogram.sum))
+                    .append(", \"min\": ").append(number(histogram.count == 0 ? 0 : histogram.min))
+                    .append(", \"max\": ").append(number(histogram.count == 0 ? 0 : histogram.max))
+                    .append(", \"mean\": ").append(number(histogram.count == 0 ? 0 : histogram.sum / histogram.count))
+                    .append(", \"buckets\": {");
+            long cumulative = 0;
+            for (int i = 0; i <= histogram.bounds.length; i++) {
+                cumulative += histogram.buckets[i];
+                json.append(i == 0 ? "" : ", ").append('"').append(bound(histogram, i)).append("\": ").append(cumulative);
+            }
+            json.append("}}");
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format. Counters get a <code>_total</code> suffix and every name gets the prefix <code>embryo_</code>
+     */
+    public static String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> counter : counterValues().entrySet()) {
+            String name = PREFIX + sanitize(counter.getKey()) + "_total";
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(' ').append(counter.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue().snapshot();
+            String name = PREFIX + sanitize(entry.getKey());
+            text.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i <= histogram.bounds.length; i++) {
+                cumulative += histogram.buckets[i];
+                text.append(name).append("_bucket{le=\"").append(bound(histogram, i)).append("\"} ").append(cumulative).append('\n');
+            }
+            text.append(name).append("_sum ").append(number(histogram.sum)).append('\n');
+            text.append(name).append("_count ").append(histogram.count).append('\n');
+        }
+        return text.toString();
+    }
+
+    public static void writeJson(File file) throws IOException {
+        write(file, toJson());
+    }
+
+    public static void writePrometheus(File file) throws IOException {
+        write(file, toPrometheus());
+    }
+
+    /**
+     * Writes to a temporary file first, so that a collector never reads half a file
+     */
+    private static void write(File file, String content) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        File temp = new File(parent, file.getName() + ".tmp");
+        PrintWriter writer = new PrintWriter(temp, "UTF-8");
+        try {
+            writer.print(content);
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Not able to write " + file);
+        }
+    }
+
+    private static TreeMap<String, Long> counterValues() {
+        TreeMap<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().get());
+        }
+        return values;
+    }
+
+    private static String bound(Histogram histogram, int i) {
+        return i == histogram.bounds.length ? "+Inf" : number(histogram.bounds[i]);
+    }
+
+    private static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    /**
+     * Count, sum, min, max and bucket counts of the values added to it
+     */
+    private static class Histogram {
+        private final double[] bounds;
+        private final long[] buckets;
+        private long count;
+        private double sum;
+        private double min = Double.MAX_VALUE;
+        private double max = -Double.MAX_VALUE;
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new long[bounds.length + 1];
+        }
+
+        synchronized void observe(double value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            buckets[i]++;
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        /**
+         * @return a consistent copy, for reading while other threads keep adding values
+         */
+        synchronized Histogram snapshot() {
+            Histogram copy = new Histogram(bounds);
+            System.arraycopy(buckets, 0, copy.buckets, 0, buckets.length);
+            copy.count = count;
+            copy.sum = sum;
+            copy.min = min;
+            copy.max = max;
+            return copy;
+        }
+    }
+}
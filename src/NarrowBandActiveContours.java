@@ -0,0 +1,607 @@
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * <code>NarrowBandActiveContours</code> is a 2D active contour that only keeps the level set function in a narrow band of
+ * <code>BAND_WIDTH</code> px around the contour. <code>ActiveContours</code>(of the Fiji Level Sets plugin) updates its state
+ * over the whole image in every iteration; here an iteration costs in proportion to the length of the contour, so a small cell
+ * in a large image is about as cheap as in a small one.
+ *
+ * The contour moves with the speed <code>advection * R - curvature * k</code>, where k is the curvature of the contour and R is
+ * a region term: +1 where the local(3x3) mean grey value equals the mean grey value of the region the contour started in,
+ * falling to 0 at <code>grey_tol</code> standard deviations from it and to -1 beyond. So the contour grows over pixels that look
+ * like the start region and stops(or is pushed back) at pixels that don't, eg. a bright cell boundry.
+ *
+ * The parameters have the same names as those of <code>ActiveContours</code> but not the same meaning, so values tuned for one
+ * engine are not right for the other: <code>grey_tol</code> is a number of standard deviations of the start region(not grey levels),
+ * and <code>convergence</code> is the fraction of the area that may still change during one <code>step</code>.
+ *
+ * Only pixels within 1.5 px of the contour are moved by the level set equation, the rest of the band is rebuilt from them
+ * after every iteration(city block distance, sign kept from the last time the pixel was near the contour).
+ * The state is kept in primitive arrays that only cover a window around the contour(the bounds of the roi grown by
+ * <code>WINDOW_MARGIN</code> px at first). When the band comes near an edge of the window, the window is made larger. Pixels outside
+ * the window are outside the contour. So the memory of a roi also depends on the size of the cell, not of the image.
+ *
+ * Use it like <code>ActiveContours</code>: call <code>step</code> until it returns false, then take <code>getMask()</code>.
+ *
+ * @see LevelSetUtility#getSegImageNarrowBand(ij.ImagePlus, Roi, double, double, double, double, boolean, int, int)
+ */
+public class NarrowBandActiveContours {
+
+    /**
+     * half width(in px) of the band around the contour
+     */
+    private static final int BAND_WIDTH = 3;
+
+    /**
+     * band pixels closer than this to the contour are moved by the level set equation
+     */
+    private static final float ACTIVE = 1.5f;
+
+    /**
+     * value of the level set function for pixels outside the band(negated inside the contour)
+     */
+    private static final float FAR = BAND_WIDTH + 1;
+
+    /**
+     * largest change of the level set function in one iteration. Keeps the contour inside the band
+     */
+    private static final float MAXIMUM_CHANGE = 0.5f;
+
+    /**
+     * px added around the roi for the first window, and the least px added when the window grows
+     */
+    private static final int WINDOW_MARGIN = 16;
+
+    /**
+     * the window grows when the band comes this close to one of its edges(that is not an edge of the image).
+     * In one iteration the band moves by at most 2 px, and the level set equation reads 1 px beyond the band
+     */
+    private static final int WINDOW_SAFETY = 3;
+
+    private final ImageProcessor image;
+    private final int imageWidth;
+    private final int imageHeight;
+    private final double convergence;
+    private final double advection;
+    private final double curvature;
+    private final boolean expandToInside;
+    private final double timeStep;
+
+    /**
+     * mean grey value of the start region and the allowed difference from it(grey_tol standard deviations)
+     */
+    private double mean;
+    private double tolerance;
+
+    /**
+     * position(in the image) and size of the window. All the arrays below are indexed by <code>y * width + x</code> in the window
+     */
+    private int windowX;
+    private int windowY;
+    private int width;
+    private int height;
+
+    /**
+     * level set function, negative inside the contour. Only valid where <code>stamp[i] == generation</code>
+     */
+    private float[] phi;
+
+    /**
+     * 1 for pixels inside the contour
+     */
+    private byte[] inside;
+
+    /**
+     * pixels whose stamp equals the current generation are in the band. Saves clearing the band on every rebuild
+     */
+    private int[] stamp;
+    private int generation = 0;
+
+    private int[] band = new int[256];
+    private int bandSize = 0;
+    private float[] update = new float[256];
+
+    /**
+     * bounds of the band in the window, updated by every rebuild
+     */
+    private int bandMinX, bandMinY, bandMaxX, bandMaxY;
+
+    /**
+     * pixels next to the contour and their distance to it, kept between rebuilds
+     */
+    private int[] contour = new int[256];
+    private float[] distance = new float[256];
+
+    /**
+     * number of pixels inside the contour
+     */
+    private int area = 0;
+    private int iterations = 0;
+
+    /**
+     * @param image          image on which the contour evolves. Colour images are converted to grey
+     * @param roi            initial contour
+     * @param convergence    the contour has converged when its area changes by less than this fraction during one <code>step</code>
+     * @param advection      weight of the region term
+     * @param curvature      weight of the curvature term(smoothness of the contour)
+     * @param grey_tol       number of standard deviations a grey value may differ from the mean of the start region
+     * @param expandToInside if true the contour shrinks over pixels that look like the pixels just inside the initial contour, otherwise it grows
+     */
+    public NarrowBandActiveContours(ImageProcessor image, Roi roi, double convergence, double advection, double curvature, double grey_tol, boolean expandToInside) {
+        this.image = image instanceof ColorProcessor ? image.convertToByte(false) : image;
+        this.imageWidth = image.getWidth();
+        this.imageHeight = image.getHeight();
+        this.convergence = convergence;
+        this.advection = advection;
+        this.curvature = curvature;
+        this.expandToInside = expandToInside;
+
+        //explicit scheme: the curvature term needs dt * curvature <= 0.25 to stay stable
+        double timeStep = 0.5;
+        if (advection > 0) {
+            timeStep = Math.min(timeStep, 0.5 / advection);
+        }
+        if (curvature > 0) {
+            timeStep = Math.min(timeStep, 0.25 / curvature);
+        }
+        this.timeStep = timeStep;
+
+        Rectangle imageBounds = new Rectangle(0, 0, imageWidth, imageHeight);
+        Rectangle window = roi.getBounds().intersection(imageBounds);
+        window.grow(WINDOW_MARGIN, WINDOW_MARGIN);
+        window = window.intersection(imageBounds);
+        windowX = window.x;
+        windowY = window.y;
+        width = Math.max(0, window.width);
+        height = Math.max(0, window.height);
+        phi = new float[width * height];
+        inside = new byte[width * height];
+        stamp = new int[width * height];
+
+        Rectangle bounds = fill(roi);
+        rebuildBand(bounds);
+        setRegionStatistics(bounds, grey_tol);
+    }
+
+    /**
+     * Runs <code>iterations</code> iterations.
+     * @return false if the contour has converged or vanished, true if it is still moving
+     */
+    public boolean step(int iterations) {
+        if (area == 0) {
+            return false;
+        }
+        int areaBefore = area;
+        for (int i = 0; i < iterations; i++) {
+            iterate();
+            if (area == 0) {
+                return false;
+            }
+        }
+        return Math.abs(area - areaBefore) > convergence * Math.max(1, areaBefore);
+    }
+
+    /**
+     * @return binary image of the size of the input image. Pixels inside the contour are foreground(like <code>BinaryMorphology</code>,
+     * 255 if <code>Prefs.blackBackground</code> is set and 0 otherwise), so "Create Selection" selects the contour
+     */
+    public ByteProcessor getMask() {
+        return getMask(BinaryMorphology.getDefaultForeground());
+    }
+
+    /**
+     * Only the window is looked at, the rest of the image is filled with the background in one go.
+     * @param foregroundValue value of the pixels inside the contour(0 or 255), the others get the other value
+     * @return binary image of the size of the input image
+     */
+    public ByteProcessor getMask(int foregroundValue) {
+        byte foreground = (byte) foregroundValue;
+        byte background = (byte) (255 - (foreground & 0xff));
+        ByteProcessor mask = new ByteProcessor(imageWidth, imageHeight);
+        byte[] pixels = (byte[]) mask.getPixels();
+        if (background != 0) {
+            Arrays.fill(pixels, background);
+        }
+        for (int y = 0; y < height; y++) {
+            int offset = (windowY + y) * imageWidth + windowX;
+            for (int x = 0, i = y * width; x < width; x++, i++) {
+                if (inside[i] == 1) {
+                    pixels[offset + x] = foreground;
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @return number of pixels inside the contour
+     */
+    public int getArea() {
+        return area;
+    }
+
+    /**
+     * @return number of iterations run so far
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return number of pixels in the band
+     */
+    public int getBandSize() {
+        return bandSize;
+    }
+
+    /**
+     * @return part of the image the state is kept for
+     */
+    public Rectangle getWindow() {
+        return new Rectangle(windowX, windowY, width, height);
+    }
+
+    /*
+    marks the pixels of roi as inside. Returns the part of the window the roi covers
+     */
+    private Rectangle fill(Roi roi) {
+        Rectangle roiBounds = roi.getBounds();
+        Rectangle bounds = roiBounds.intersection(new Rectangle(windowX, windowY, width, height));
+        ImageProcessor roiMask = roi.getMask();
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                if (roiMask == null || roiMask.get(x - roiBounds.x, y - roiBounds.y) != 0) {
+                    inside[(y - windowY) * width + x - windowX] = 1;
+                    area++;
+                }
+            }
+        }
+        bounds.translate(-windowX, -windowY);
+        return bounds;
+    }
+
+    /*
+    mean and standard deviation of the region the contour starts in: the whole roi(bounds, in the window) when growing,
+    the inner half of the band when shrinking(the roi then usually covers mostly background)
+     */
+    private void setRegionStatistics(Rectangle bounds, double grey_tol) {
+        double sum = 0, sumOfSquares = 0;
+        long n = 0;
+        if (expandToInside) {
+            for (int k = 0; k < bandSize; k++) {
+                int i = band[k];
+                if (inside[i] == 1) {
+                    double value = image.getf(toImage(i));
+                    sum += value;
+                    sumOfSquares += value * value;
+                    n++;
+                }
+            }
+        } else {
+            for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+                for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                    int i = y * width + x;
+                    if (inside[i] == 1) {
+                        double value = image.getf((windowY + y) * imageWidth + windowX + x);
+                        sum += value;
+                        sumOfSquares += value * value;
+                        n++;
+                    }
+                }
+            }
+        }
+        mean = n > 0 ? sum / n : 0;
+        double variance = n > 1 ? (sumOfSquares - sum * sum / n) / (n - 1) : 0;
+        tolerance = Math.max(1, grey_tol * Math.sqrt(Math.max(0, variance)));
+    }
+
+    /*
+    one explicit update of the active pixels of the band, followed by a rebuild of the band
+     */
+    private void iterate() {
+        ensureWindow();
+        if (update.length < bandSize) {
+            update = new float[band.length];
+        }
+        for (int k = 0; k < bandSize; k++) {
+            int i = band[k];
+            float value = phi[i];
+            if (Math.abs(value) > ACTIVE) {
+                update[k] = value;
+                continue;
+            }
+            int x = i % width;
+            int y = i / width;
+            int left = x > 0 ? i - 1 : i;
+            int right = x < width - 1 ? i + 1 : i;
+            int up = y > 0 ? -width : 0;
+            int down = y < height - 1 ? width : 0;
+
+            double l = value(left), r = value(right), u = value(i + up), d = value(i + down);
+
+            //upwind gradient for the region term
+            double speed = speed(windowX + x, windowY + y);
+            double dmx = value - l, dpx = r - value, dmy = value - u, dpy = d - value;
+            double gradient;
+            if (speed > 0) {
+                gradient = Math.sqrt(sq(Math.max(dmx, 0)) + sq(Math.min(dpx, 0)) + sq(Math.max(dmy, 0)) + sq(Math.min(dpy, 0)));
+            } else {
+                gradient = Math.sqrt(sq(Math.min(dmx, 0)) + sq(Math.max(dpx, 0)) + sq(Math.min(dmy, 0)) + sq(Math.max(dpy, 0)));
+            }
+
+            //curvature times gradient magnitude with central differences
+            double phiX = (r - l) / 2, phiY = (d - u) / 2;
+            double phiXX = r - 2 * value + l, phiYY = d - 2 * value + u;
+            double phiXY = (value(right + down) - value(right + up) - value(left + down) + value(left + up)) / 4;
+            double gradientSquared = phiX * phiX + phiY * phiY;
+            double curvatureTerm = gradientSquared > 1e-10 ? (phiXX * phiY * phiY - 2 * phiX * phiY * phiXY + phiYY * phiX * phiX) / gradientSquared : 0;
+
+            double change = timeStep * (-speed * gradient + curvature * curvatureTerm);
+            change = Math.max(-MAXIMUM_CHANGE, Math.min(MAXIMUM_CHANGE, change));
+            update[k] = (float) (value + change);
+        }
+
+        for (int k = 0; k < bandSize; k++) {
+            int i = band[k];
+            float value = update[k];
+            phi[i] = value;
+            byte isInside = (byte) (value < 0 ? 1 : 0);
+            if (isInside != inside[i]) {
+                inside[i] = isInside;
+                area += isInside == 1 ? 1 : -1;
+            }
+        }
+        iterations++;
+        rebuildBand(null);
+    }
+
+    /*
+    region term at (x, y) of the image, with the direction of motion
+     */
+    private double speed(int x, int y) {
+        double sum = 0;
+        int n = 0;
+        for (int yy = Math.max(0, y - 1); yy <= Math.min(imageHeight - 1, y + 1); yy++) {
+            for (int xx = Math.max(0, x - 1); xx <= Math.min(imageWidth - 1, x + 1); xx++) {
+                sum += image.getf(yy * imageWidth + xx);
+                n++;
+            }
+        }
+        double region = 1 - Math.abs(sum / n - mean) / tolerance;
+        region = Math.max(-1, Math.min(1, region));
+        return expandToInside ? -advection * region : advection * region;
+    }
+
+    /*
+    level set function at i, also for pixels outside the band
+     */
+    private float value(int i) {
+        if (stamp[i] == generation) {
+            return phi[i];
+        }
+        return inside[i] == 1 ? -FAR : FAR;
+    }
+
+    /*
+    index in the image of pixel i of the window
+     */
+    private int toImage(int i) {
+        return (windowY + i / width) * imageWidth + windowX + i % width;
+    }
+
+    /**
+     * Makes the window larger when the band came near one of its edges, so that the contour never reaches an edge of the window
+     * that is not an edge of the image. The window grows by at least half its size, so it is copied only a few times per roi
+     */
+    private void ensureWindow() {
+        boolean nearLeft = bandMinX < WINDOW_SAFETY && windowX > 0;
+        boolean nearTop = bandMinY < WINDOW_SAFETY && windowY > 0;
+        boolean nearRight = bandMaxX >= width - WINDOW_SAFETY && windowX + width < imageWidth;
+        boolean nearBottom = bandMaxY >= height - WINDOW_SAFETY && windowY + height < imageHeight;
+        if (bandSize == 0 || !(nearLeft || nearTop || nearRight || nearBottom)) {
+            return;
+        }
+        int margin = Math.max(WINDOW_MARGIN, Math.max(width, height) / 2);
+        Rectangle window = new Rectangle(windowX, windowY, width, height);
+        Rectangle bandBounds = new Rectangle(windowX + bandMinX, windowY + bandMinY, bandMaxX - bandMinX + 1, bandMaxY - bandMinY + 1);
+        bandBounds.grow(margin, margin);
+        window = window.union(bandBounds).intersection(new Rectangle(0, 0, imageWidth, imageHeight));
+
+        int dx = windowX - window.x;
+        int dy = windowY - window.y;
+        float[] newPhi = new float[window.width * window.height];
+        byte[] newInside = new byte[window.width * window.height];
+        int[] newStamp = new int[window.width * window.height];
+        for (int y = 0; y < height; y++) {
+            int from = y * width;
+            int to = (y + dy) * window.width + dx;
+            System.arraycopy(phi, from, newPhi, to, width);
+            System.arraycopy(inside, from, newInside, to, width);
+            System.arraycopy(stamp, from, newStamp, to, width);
+        }
+        for (int k = 0; k < bandSize; k++) {
+            int i = band[k];
+            band[k] = (i / width + dy) * window.width + i % width + dx;
+        }
+        bandMinX += dx;
+        bandMaxX += dx;
+        bandMinY += dy;
+        bandMaxY += dy;
+        phi = newPhi;
+        inside = newInside;
+        stamp = newStamp;
+        windowX = window.x;
+        windowY = window.y;
+        width = window.width;
+        height = window.height;
+        Metrics.increment("narrowband_window_grows");
+    }
+
+    /**
+     * Builds the band again around the current contour. The pixels next to the contour get the distance to it from
+     * linear interpolation of the level set function, the other band pixels the city block distance to those.
+     * @param bounds part of the window to search for the contour, or null to search the current band
+     */
+    private void rebuildBand(Rectangle bounds) {
+        //pixels next to the contour, ie, with a 4 neighbour on the other side
+        int contourSize = 0;
+        if (bounds != null) {
+            Rectangle grown = new Rectangle(bounds);
+            grown.grow(1, 1);
+            grown = grown.intersection(new Rectangle(0, 0, width, height));
+            for (int y = grown.y; y < grown.y + grown.height; y++) {
+                for (int x = grown.x; x < grown.x + grown.width; x++) {
+                    float d = distanceToContour(y * width + x, x, y, true);
+                    if (d >= 0) {
+                        addToContour(contourSize++, y * width + x, d);
+                    }
+                }
+            }
+        } else {
+            for (int k = 0; k < bandSize; k++) {
+                int i = band[k];
+                float d = distanceToContour(i, i % width, i / width, false);
+                if (d >= 0) {
+                    addToContour(contourSize++, i, d);
+                }
+            }
+        }
+
+        generation++;
+        bandSize = 0;
+        for (int k = 0; k < contourSize; k++) {
+            int i = contour[k];
+            stamp[i] = generation;
+            phi[i] = inside[i] == 1 ? -distance[k] : distance[k];
+            addToBand(i);
+        }
+
+        //grow the band one layer at a time
+        int layerStart = 0;
+        for (int layer = 1; layer <= BAND_WIDTH; layer++) {
+            int layerEnd = bandSize;
+            for (int k = layerStart; k < layerEnd; k++) {
+                int i = band[k];
+                int x = i % width;
+                int y = i / width;
+                if (x > 0) {
+                    addNeighbour(i - 1);
+                }
+                if (x < width - 1) {
+                    addNeighbour(i + 1);
+                }
+                if (y > 0) {
+                    addNeighbour(i - width);
+                }
+                if (y < height - 1) {
+                    addNeighbour(i + width);
+                }
+            }
+            layerStart = layerEnd;
+        }
+
+        bandMinX = width;
+        bandMinY = height;
+        bandMaxX = -1;
+        bandMaxY = -1;
+        for (int k = 0; k < bandSize; k++) {
+            int x = band[k] % width;
+            int y = band[k] / width;
+            bandMinX = Math.min(bandMinX, x);
+            bandMaxX = Math.max(bandMaxX, x);
+            bandMinY = Math.min(bandMinY, y);
+            bandMaxY = Math.max(bandMaxY, y);
+        }
+    }
+
+    private void addToContour(int k, int i, float d) {
+        if (k == contour.length) {
+            contour = Arrays.copyOf(contour, k * 2);
+            distance = Arrays.copyOf(distance, k * 2);
+        }
+        contour[k] = i;
+        distance[k] = d;
+    }
+
+    /*
+    distance of pixel i to the contour if it has a 4 neighbour on the other side of it, -1 otherwise
+     */
+    private float distanceToContour(int i, int x, int y, boolean initial) {
+        byte side = inside[i];
+        float nearest = -1;
+        if (x > 0 && inside[i - 1] != side) {
+            nearest = nearest(nearest, i, i - 1, initial);
+        }
+        if (x < width - 1 && inside[i + 1] != side) {
+            nearest = nearest(nearest, i, i + 1, initial);
+        }
+        if (y > 0 && inside[i - width] != side) {
+            nearest = nearest(nearest, i, i - width, initial);
+        }
+        if (y < height - 1 && inside[i + width] != side) {
+            nearest = nearest(nearest, i, i + width, initial);
+        }
+        return nearest;
+    }
+
+    /*
+    the contour crosses between i and its neighbour j where the level set function is 0.
+    On the first build there is no level set function yet, so the contour is put half way
+     */
+    private float nearest(float nearest, int i, int j, boolean initial) {
+        float d = 0.5f;
+        if (!initial) {
+            float a = Math.abs(value(i));
+            float b = Math.abs(value(j));
+            if (a + b > 1e-6f) {
+                d = a / (a + b);
+            }
+        }
+        return nearest < 0 ? d : Math.min(nearest, d);
+    }
+
+    /*
+    adds a pixel of the next layer, one px further from the contour than its nearest band neighbour
+     */
+    private void addNeighbour(int i) {
+        if (stamp[i] == generation) {
+            return;
+        }
+        int x = i % width;
+        int y = i / width;
+        float d = Float.MAX_VALUE;
+        if (x > 0 && stamp[i - 1] == generation) {
+            d = Math.min(d, Math.abs(phi[i - 1]));
+        }
+        if (x < width - 1 && stamp[i + 1] == generation) {
+            d = Math.min(d, Math.abs(phi[i + 1]));
+        }
+        if (y > 0 && stamp[i - width] == generation) {
+            d = Math.min(d, Math.abs(phi[i - width]));
+        }
+        if (y < height - 1 && stamp[i + width] == generation) {
+            d = Math.min(d, Math.abs(phi[i + width]));
+        }
+        d += 1;
+        stamp[i] = generation;
+        phi[i] = inside[i] == 1 ? -d : d;
+        addToBand(i);
+    }
+
+    private void addToBand(int i) {
+        if (bandSize == band.length) {
+            band = Arrays.copyOf(band, bandSize * 2);
+        }
+        band[bandSize++] = i;
+    }
+
+    private static double sq(double value) {
+        return value * value;
+    }
+}
@@ -0,0 +1,400 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import trainableSegmentation.WekaSegmentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <code>PipelineRunner</code> runs all four stages on a folder of original images without going through the disk between the stages.
+ * Each stage runs on its own thread and hands its <code>ImagePlus</code> results to the next stage through a bounded queue,
+ * so a slow stage makes the earlier stages wait instead of filling the memory.
+ * <ol>
+ * <li>Weka Segmentation: original image to probability map</li>
+ * <li>Thresholding: probability map to threshold image</li>
+ * <li>Boundry Detection: original image to cell mask</li>
+ * <li>Level Set: original image, threshold image and cell mask to final result</li>
+ * </ol>
+ * Only the final result is written, into <code>outputDir</code>. Intermediate images are written only if a folder is set for them.
+ *
+ * @see WekaSegmentaionStage
+ * @see ThresholdingStage
+ * @see EmbryoBoundryDetection
+ * @see LevelSetStage
+ */
+public class PipelineRunner {
+
+    /**
+     * marks the end of the input in a queue
+     */
+    private static final PipelineItem END = new PipelineItem(null, -1);
+
+    private String inputDir;
+    private String outputDir;
+    private String classifierModelFileAddress;
+    private double lowerThreshold;
+    private double upperThreshold;
+
+    /**
+     * folders for intermediate images. null means that the image is not written
+     */
+    private String probabilityMapDir;
+    private String thresholdDir;
+    private String cellMaskDir;
+
+    /**
+     * maximum number of images waiting between two stages
+     */
+    private int queueCapacity = 2;
+
+    /**
+     * number of worker threads used for evolving the rois of an image
+     */
+    private int numberOfThreads = 1;
+
+    /**
+     * if more than 0, images larger than this(in px) are classified tile by tile with <code>TiledClassifier</code>
+     */
+    private int tileSize = 0;
+
+    /**
+     * number of tiles of one image classified at the same time
+     */
+    private int tileThreads = 1;
+
+    /**
+     * if not null, the images are taken as the frames of a time-lapse and every frame starts from the contours of the previous one
+     */
+    private TimeLapseTracker timeLapseTracker;
+
+    /**
+     * if more than 1, the boundry of the embryo is first found on the image shrunk by this factor
+     */
+    private int pyramidFactor = 1;
+
+    private LevelSetParameters levelSetParameters = new LevelSetParameters();
+
+    /**
+     * @param inputDir                   folder with the original images
+     * @param outputDir                  folder for the final results
+     * @param classifierModelFileAddress address of the classifier or model used in Weka Segmentation
+     * @param lowerThreshold             lower threshold for the probability map
+     * @param upperThreshold             upper threshold for the probability map
+     */
+    public PipelineRunner(String inputDir, String outputDir, String classifierModelFileAddress, double lowerThreshold, double upperThreshold) {
+        this.inputDir = inputDir;
+        this.outputDir = outputDir;
+        this.classifierModelFileAddress = classifierModelFileAddress;
+        this.lowerThreshold = lowerThreshold;
+        this.upperThreshold = upperThreshold;
+    }
+
+    /**
+     * Runs the pipeline on all the images in <code>inputDir</code> and waits until all of them are written
+     * @return number of images that could not be read or were dropped by a stage
+     */
+    public int apply() {
+        List<File> inputImages = BatchExecutor.listFiles(inputDir);
+        final WekaSegmentation wekaSegmentation = ClassifierCache.get(classifierModelFileAddress);
+        if (wekaSegmentation == null) {
+            return inputImages.size();
+        }
+
+        BlockingQueue<PipelineItem> toClassify = new ArrayBlockingQueue<PipelineItem>(queueCapacity);
+        BlockingQueue<PipelineItem> toThreshold = new ArrayBlockingQueue<PipelineItem>(queueCapacity);
+        BlockingQueue<PipelineItem> toDetectBoundry = new ArrayBlockingQueue<PipelineItem>(queueCapacity);
+        BlockingQueue<PipelineItem> toEvolve = new ArrayBlockingQueue<PipelineItem>(queueCapacity);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        final AtomicInteger failures = new AtomicInteger();
+        final TiledClassifier tiledClassifier = new TiledClassifier(wekaSegmentation);
+        tiledClassifier.setTileSize(tileSize);
+        tiledClassifier.setNumberOfThreads(tileThreads);
+        if (tileSize > 0 && !tiledClassifier.isSeamless()) {
+            IJ.log("The Lipschitz or anisotropic diffusion features are enabled, tiled images can differ a little at the edges of the tiles");
+        }
+        threads.add(startStage("Weka Segmentation", toClassify, toThreshold, failures, new Step() {
+            @Override
+            public void process(PipelineItem item) throws IOException {
+                if (tileSize > 0) {
+                    item.probabilityMap = tiledClassifier.apply(item.original);
+                    if (item.probabilityMap == null) {
+                        throw new IOException("Not able to classify the tiles of " + item.name);
+                    }
+                } else {
+                    // 0 indicates number of threads is auto-detected and true for probability map
+                    item.probabilityMap = wekaSegmentation.applyClassifier(item.original, 0, true);
+                }
+                saveProbabilityMap(item.probabilityMap, probabilityMapDir, item.name);
+            }
+        }));
+        threads.add(startStage("Thresholding", toThreshold, toDetectBoundry, failures, new Step() {
+            @Override
+            public void process(PipelineItem item) throws IOException {
+                item.threshold = ThresholdingStage.apply(item.probabilityMap, lowerThreshold, upperThreshold);
+                item.probabilityMap = null;
+                saveBinaryImage(item.threshold, thresholdDir, item.name);
+            }
+        }));
+        threads.add(startStage("Boundry Detection", toDetectBoundry, toEvolve, failures, new Step() {
+            @Override
+            public void process(PipelineItem item) throws IOException {
+                item.cellMask = EmbryoBoundryDetection.apply(item.original, pyramidFactor);
+                save(item.cellMask, cellMaskDir, item.name);
+            }
+        }));
+        threads.add(startStage("Level Set", toEvolve, null, failures, new Step() {
+            /**
+             * position of the last frame evolved from the contours of the frame before it
+             */
+            private int previousIndex = -1;
+
+            @Override
+            public void process(PipelineItem item) throws IOException {
+                ImagePlus result;
+                if (timeLapseTracker != null) {
+                    //frames reach this stage in the order they were read. When one was dropped by an earlier stage,
+                    //the contours of the tracker are more than one frame old
+                    if (item.index != previousIndex + 1) {
+                        timeLapseTracker.reset();
+                    }
+                    //if this frame fails, the next one starts from scratch too
+                    previousIndex = -2;
+                    result = LevelSetStage.apply(item.original, item.threshold, item.cellMask, levelSetParameters, numberOfThreads, timeLapseTracker);
+                    previousIndex = item.index;
+                } else {
+                    result = LevelSetStage.apply(item.original, item.threshold, item.cellMask, levelSetParameters, numberOfThreads);
+                }
+                save(result, outputDir, item.name);
+            }
+        }));
+
+        try {
+            //reading is done on the calling thread
+            for (int i = 0; i < inputImages.size(); i++) {
+                File inputImage = inputImages.get(i);
+                PipelineItem item = new PipelineItem(inputImage.getName(), i);
+                long start = Metrics.start();
+                item.original = IJ.openImage(inputImage.getAbsolutePath());
+                Metrics.stop("pipeline_read_seconds", start);
+                if (item.original == null) {
+                    IJ.log("Not able to read image: " + inputImage.getName());
+                    failures.incrementAndGet();
+                    continue;
+                }
+                toClassify.put(item);
+            }
+            toClassify.put(END);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            Thread.currentThread().interrupt();
+        }
+        if (failures.get() > 0) {
+            IJ.log("Pipeline: " + failures.get() + " of " + inputImages.size() + " images failed");
+        }
+        return failures.get();
+    }
+
+    /**
+     * Starts a thread that takes items from <code>input</code>, processes them and passes them to <code>output</code>.
+     * An item that fails(with an exception or an error) is logged, counted in <code>failures</code> and dropped.
+     */
+    private static Thread startStage(final String name, final BlockingQueue<PipelineItem> input, final BlockingQueue<PipelineItem> output,
+                                     final AtomicInteger failures, final Step step) {
+        //names of the metrics are made once, not for every item
+        String metric = "pipeline_" + name.toLowerCase().replace(' ', '_');
+        final String waitMetric = metric + "_wait_seconds";
+        final String secondsMetric = metric + "_seconds";
+        final String failuresMetric = metric + "_failures";
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        //time spent waiting for the previous stage
+                        long start = Metrics.start();
+                        PipelineItem item = input.take();
+                        Metrics.stop(waitMetric, start);
+                        if (item == END) {
+                            break;
+                        }
+                        try {
+                            start = Metrics.start();
+                            step.process(item);
+                            Metrics.stop(secondsMetric, start);
+                        } catch (Throwable throwable) {
+                            //also errors(eg. OutOfMemoryError on a large image), so that END still reaches the next stage
+                            IJ.log(name + " failed for " + item.name + ": " + throwable);
+                            Metrics.increment(failuresMetric);
+                            failures.incrementAndGet();
+                            continue;
+                        }
+                        if (output != null) {
+                            output.put(item);
+                        }
+                    }
+                    if (output != null) {
+                        output.put(END);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    private static void save(ImagePlus imagePlus, String dir, String name) throws IOException {
+        if (dir != null && !new FileSaver(imagePlus).saveAsJpeg(dir + File.separator + name)) {
+            throw new IOException("Not able to save " + name + " in " + dir);
+        }
+    }
+
+    /*
+    probability maps are written in the lossless format read by ThresholdingStage
+     */
+    private static void saveProbabilityMap(ImagePlus imagePlus, String dir, String name) throws IOException {
+        if (dir != null) {
+            FloatImageIO.write(imagePlus, new File(dir, FloatImageIO.withExtension(name, FloatImageIO.EXTENSION)));
+        }
+    }
+
+    private static void saveBinaryImage(ImagePlus imagePlus, String dir, String name) throws IOException {
+        if (dir != null && !new FileSaver(imagePlus).saveAsTiff(dir + File.separator + FloatImageIO.withExtension(name, ".tif"))) {
+            throw new IOException("Not able to save " + name + " in " + dir);
+        }
+    }
+
+    /*
+    getter and setter functions follows below
+     */
+    public String getProbabilityMapDir() {
+        return probabilityMapDir;
+    }
+
+    public void setProbabilityMapDir(String probabilityMapDir) {
+        this.probabilityMapDir = probabilityMapDir;
+    }
+
+    public String getThresholdDir() {
+        return thresholdDir;
+    }
+
+    public void setThresholdDir(String thresholdDir) {
+        this.thresholdDir = thresholdDir;
+    }
+
+    public String getCellMaskDir() {
+        return cellMaskDir;
+    }
+
+    public void setCellMaskDir(String cellMaskDir) {
+        this.cellMaskDir = cellMaskDir;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @param tileSize images larger than this(in px) are classified tile by tile. 0 classifies every image at once
+     */
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    public int getTileThreads() {
+        return tileThreads;
+    }
+
+    /**
+     * @param tileThreads number of tiles of one image classified at the same time, sharing the processors
+     */
+    public void setTileThreads(int tileThreads) {
+        this.tileThreads = tileThreads;
+    }
+
+    public int getPyramidFactor() {
+        return pyramidFactor;
+    }
+
+    /**
+     * @param pyramidFactor if more than 1, the boundry of the embryo is first found on the image shrunk by this factor
+     * @see EmbryoBoundryDetection#getWholeCellMaskPyramid(ImagePlus, ij.gui.Roi, int)
+     */
+    public void setPyramidFactor(int pyramidFactor) {
+        this.pyramidFactor = pyramidFactor;
+    }
+
+    public boolean isTimeLapse() {
+        return timeLapseTracker != null;
+    }
+
+    /**
+     * @param timeLapse if true, the images are taken as the frames of a time-lapse, and every frame is started from the contours of the previous one
+     * @see TimeLapseTracker
+     */
+    public void setTimeLapse(boolean timeLapse) {
+        this.timeLapseTracker = timeLapse ? new TimeLapseTracker() : null;
+    }
+
+    public LevelSetParameters getLevelSetParameters() {
+        return levelSetParameters;
+    }
+
+    /**
+     * Work done by a stage on one image
+     */
+    private interface Step {
+        void process(PipelineItem item) throws Exception;
+    }
+
+    /**
+     * Images of one frame, as they pass from stage to stage
+     */
+    private static class PipelineItem {
+        private final String name;
+
+        /**
+         * position of the image in the input folder
+         */
+        private final int index;
+        private ImagePlus original;
+        private ImagePlus probabilityMap;
+        private ImagePlus threshold;
+        private ImagePlus cellMask;
+
+        private PipelineItem(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <code>Prefetcher</code> loads the items of a batch(eg. decodes images) on background threads, ahead of the thread that processes them.
+ * When item n is taken with <code>get(n)</code>, the loading of the items up to <code>n + depth</code> is started, so while item n is processed
+ * the next <code>depth</code> items are read from disk. At most <code>depth</code> items that were not taken yet are loaded or being loaded,
+ * so the memory used for read-ahead is bounded.
+ *
+ * Items are meant to be taken in(roughly) the order of the list, each exactly once, like <code>BatchExecutor</code> does.
+ * <code>get</code> can be called from several threads.
+ *
+ * @param <K> type of the keys, eg. <code>File</code>
+ * @param <V> type of the loaded items, eg. <code>ImagePlus</code>
+ * @see LevelSetStage#setReadAhead(int)
+ */
+public class Prefetcher<K, V> {
+
+    /**
+     * Loads the item of one key
+     */
+    public interface Loader<K, V> {
+        V load(K key) throws Exception;
+    }
+
+    private final List<K> keys;
+    private final Loader<K, V> loader;
+    private final int depth;
+    private final ExecutorService executorService;
+
+    /**
+     * loads started and not taken yet. null for the keys whose load was not started or was taken
+     */
+    private final List<Future<V>> futures;
+
+    /**
+     * number of keys whose load was started
+     */
+    private int submitted = 0;
+
+    /**
+     * @param keys            keys of the items, in the order they will be taken
+     * @param loader          loads one item
+     * @param depth           number of items loaded ahead of the last taken one
+     * @param numberOfThreads number of items loaded at the same time
+     */
+    public Prefetcher(List<K> keys, Loader<K, V> loader, int depth, int numberOfThreads) {
+        this.keys = keys;
+        this.loader = loader;
+        this.depth = Math.max(1, depth);
+        this.executorService = Executors.newFixedThreadPool(Math.max(1, numberOfThreads));
+        this.futures = new ArrayList<Future<V>>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            futures.add(null);
+        }
+    }
+
+    /**
+     * Returns the item at <code>position</code> of the list of keys, waiting for it if it is still being loaded
+     * @param position position of the key in the list given to the constructor
+     * @return the loaded item
+     * @throws Exception the exception thrown by the loader
+     */
+    public V get(int position) throws Exception {
+        Future<V> future;
+        synchronized (this) {
+            submitUpTo(Math.min(keys.size(), position + 1 + depth));
+            future = futures.set(position, null);
+        }
+        if (future == null) {
+            throw new IllegalStateException("Item " + keys.get(position) + " was already taken");
+        }
+
+        //time the processing thread waited for the disk
+        long start = Metrics.start();
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+        } finally {
+            Metrics.stop("prefetch_wait_seconds", start);
+        }
+    }
+
+    /**
+     * Stops the background threads. Items that were loaded and not taken are dropped
+     */
+    public void close() {
+        executorService.shutdownNow();
+    }
+
+    private void submitUpTo(int end) {
+        while (submitted < end) {
+            final K key = keys.get(submitted);
+            futures.set(submitted, executorService.submit(new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    return loader.load(key);
+                }
+            }));
+            submitted++;
+        }
+    }
+}
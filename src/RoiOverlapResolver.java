@@ -0,0 +1,144 @@
+import ij.gui.Roi;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <code>RoiOverlapResolver</code> finds the rois that overlap(intersect) too much with some other roi.
+ * A roi is marked for removal when the area it shares with another roi is more than <code>OVERLAP_RATIO</code> of its own area.
+ * For a pair (i, j) with j < i, roi i is checked first and roi j is checked only if roi i is kept.
+ *
+ * Instead of checking every pair of rois, the rois are sorted by the left edge of their bounds and a sweep line over the x axis
+ * keeps only the rois whose bounds are still open. So only the pairs whose bounds intersect are tested.
+ * Areas are counted on the run-length masks of <code>RoiStore</code>, so testing a pair allocates nothing and costs O(rows + runs).
+ *
+ * @see LevelSetStage
+ * @see RoiStore
+ */
+public class RoiOverlapResolver {
+
+    /**
+     * a roi is removed if more than this fraction of its area overlaps with another roi
+     */
+    public static final double OVERLAP_RATIO = 0.3;
+
+    private final RoiStore roiStore;
+
+    private final Rectangle[] bounds;
+
+    /**
+     * area(in px) of each roi
+     */
+    private final int[] areas;
+
+    /**
+     * @param rois rois to be checked, none of them null. Their order decides which roi of an overlapping pair is removed.
+     */
+    public RoiOverlapResolver(Roi[] rois) {
+        this(new RoiStore(rois));
+    }
+
+    /**
+     * @param roiStore rois to be checked. Their order decides which roi of an overlapping pair is removed.
+     */
+    public RoiOverlapResolver(RoiStore roiStore) {
+        this.roiStore = roiStore;
+        int numberOfRoi = roiStore.size();
+        bounds = new Rectangle[numberOfRoi];
+        areas = new int[numberOfRoi];
+        for (int i = 0; i < numberOfRoi; i++) {
+            bounds[i] = roiStore.getBounds(i);
+            areas[i] = roiStore.getArea(i);
+        }
+    }
+
+    /**
+     * @return indexes(sorted) of the rois that should be removed
+     */
+    public int[] getOverlappingRois() {
+        int numberOfRoi = bounds.length;
+        boolean[] toBeRemoved = new boolean[numberOfRoi];
+
+        //rois sorted by the left edge of their bounds
+        Integer[] order = new Integer[numberOfRoi];
+        for (int i = 0; i < numberOfRoi; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(bounds[a].x, bounds[b].x);
+            }
+        });
+
+        //rois whose bounds intersect the sweep line
+        int[] active = new int[numberOfRoi];
+        int numberOfActive = 0;
+
+        for (int k = 0; k < numberOfRoi; k++) {
+            int current = order[k];
+            Rectangle currentBounds = bounds[current];
+
+            int kept = 0;
+            for (int a = 0; a < numberOfActive; a++) {
+                int other = active[a];
+                Rectangle otherBounds = bounds[other];
+                if (otherBounds.x + otherBounds.width <= currentBounds.x) {
+                    //sweep line has passed this roi
+                    continue;
+                }
+                active[kept++] = other;
+
+                if (otherBounds.y < currentBounds.y + currentBounds.height && currentBounds.y < otherBounds.y + otherBounds.height) {
+                    checkPair(Math.max(current, other), Math.min(current, other), toBeRemoved);
+                }
+            }
+            numberOfActive = kept;
+            active[numberOfActive++] = current;
+        }
+
+        int count = 0;
+        for (boolean remove : toBeRemoved) {
+            if (remove) {
+                count++;
+            }
+        }
+        int[] result = new int[count];
+        for (int i = 0, r = 0; i < numberOfRoi; i++) {
+            if (toBeRemoved[i]) {
+                result[r++] = i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Applies the overlap ratio rule on the pair (i, j), j < i
+     */
+    private void checkPair(int i, int j, boolean[] toBeRemoved) {
+        int overlap = getOverlapArea(i, j);
+        if (overlap == 0) {
+            return;
+        }
+        if ((double) overlap / areas[i] > OVERLAP_RATIO) {
+            toBeRemoved[i] = true;
+        } else if ((double) overlap / areas[j] > OVERLAP_RATIO) {
+            toBeRemoved[j] = true;
+        }
+    }
+
+    /**
+     * @return number of pixels that belong to both roi i and roi j
+     */
+    public int getOverlapArea(int i, int j) {
+        return roiStore.getIntersectionArea(i, j);
+    }
+
+    /**
+     * @return area(in px) of roi i
+     */
+    public int getArea(int i) {
+        return areas[i];
+    }
+}
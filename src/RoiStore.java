@@ -0,0 +1,225 @@
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <code>RoiStore</code> is a list of rois that can be used instead of <code>RoiManager</code> when no window is wanted.
+ * RoiManager is a frame with static state, so only one image at a time can use it. A <code>RoiStore</code> is a plain object,
+ * so every image(and every thread) can have its own.
+ *
+ * Next to each roi the store keeps a run-length mask: for every row of the bounds of the roi, the runs of px that are inside it.
+ * Bounds, area and the area shared by two rois then cost O(rows + runs), without touching the pixels of a mask.
+ *
+ * All methods are synchronized, so rois can be added from several threads(eg. by the workers that evolve them).
+ *
+ * @see LevelSetStage
+ * @see RoiOverlapResolver
+ */
+public class RoiStore {
+
+    private final List<Roi> rois = new ArrayList<Roi>();
+    private final List<RunLengthMask> masks = new ArrayList<RunLengthMask>();
+
+    public RoiStore() {
+    }
+
+    /**
+     * @param rois rois to be added, in this order. null entries(eg. rois that vanished during curve evolution) are skipped
+     */
+    public RoiStore(Roi[] rois) {
+        for (Roi roi : rois) {
+            add(roi);
+        }
+    }
+
+    /**
+     * @param roi roi to be added. null is ignored
+     * @return index of the roi, -1 if it was null
+     */
+    public synchronized int add(Roi roi) {
+        if (roi == null) {
+            return -1;
+        }
+        rois.add(roi);
+        masks.add(new RunLengthMask(roi));
+        return rois.size() - 1;
+    }
+
+    public synchronized int size() {
+        return rois.size();
+    }
+
+    public synchronized Roi get(int i) {
+        return rois.get(i);
+    }
+
+    /**
+     * @return the rois, in the order they were added
+     */
+    public synchronized Roi[] toArray() {
+        return rois.toArray(new Roi[rois.size()]);
+    }
+
+    public synchronized Rectangle getBounds(int i) {
+        return new Rectangle(masks.get(i).bounds);
+    }
+
+    /**
+     * @return area(in px) of roi i
+     */
+    public synchronized int getArea(int i) {
+        return masks.get(i).area;
+    }
+
+    /**
+     * @return number of px that belong to both roi i and roi j
+     */
+    public synchronized int getIntersectionArea(int i, int j) {
+        return masks.get(i).getIntersectionArea(masks.get(j));
+    }
+
+    /**
+     * @param indexes sorted indexes of the rois to be left out
+     * @return a new store with the other rois, in the same order
+     */
+    public synchronized RoiStore without(int[] indexes) {
+        RoiStore remaining = new RoiStore();
+        for (int i = 0, r = 0; i < rois.size(); i++) {
+            if (r < indexes.length && indexes[r] == i) {
+                r++;
+            } else {
+                remaining.rois.add(rois.get(i));
+                remaining.masks.add(masks.get(i));
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Draws the outlines of all rois on a black image
+     * @param width width of the resulting image
+     * @param height height of the resulting image
+     * @return An ImagePlus image with all the rois drawn
+     */
+    public synchronized ImagePlus render(int width, int height) {
+        ImagePlus image = NewImage.createImage("Image with all ROIs in it", width, height, 1, 8, NewImage.FILL_BLACK);
+
+        Overlay overlay = new Overlay();
+        for (Roi roi : rois) {
+            overlay.add((Roi) roi.clone());
+        }
+        image.setOverlay(overlay);
+        image.flatten();
+
+        return image;
+    }
+
+    /**
+     * @return area(in px) of a roi that is not in a store
+     */
+    public static int getArea(Roi roi) {
+        return new RunLengthMask(roi).area;
+    }
+
+    /**
+     * Runs of px inside a roi, row by row. Never changed after construction
+     */
+    private static class RunLengthMask {
+
+        private final Rectangle bounds;
+
+        /**
+         * runs of row y are at <code>runs[2 * k]</code>(first x) and <code>runs[2 * k + 1]</code>(last x + 1),
+         * for k from <code>rowStart[y - bounds.y]</code> to <code>rowStart[y - bounds.y + 1] - 1</code>
+         */
+        private final int[] rowStart;
+        private final int[] runs;
+        private final int area;
+
+        RunLengthMask(Roi roi) {
+            bounds = roi.getBounds();
+            rowStart = new int[bounds.height + 1];
+            ImageProcessor mask = roi.getMask();
+            if (mask == null) {
+                runs = new int[2 * bounds.height];
+                for (int y = 0; y < bounds.height; y++) {
+                    runs[2 * y] = bounds.x;
+                    runs[2 * y + 1] = bounds.x + bounds.width;
+                    rowStart[y + 1] = y + 1;
+                }
+                area = bounds.width * bounds.height;
+                return;
+            }
+
+            byte[] pixels = (byte[]) mask.getPixels();
+            int[] found = new int[16];
+            int count = 0;
+            int pixelCount = 0;
+            for (int y = 0; y < bounds.height; y++) {
+                int offset = y * bounds.width;
+                int x = 0;
+                while (x < bounds.width) {
+                    while (x < bounds.width && pixels[offset + x] == 0) {
+                        x++;
+                    }
+                    if (x == bounds.width) {
+                        break;
+                    }
+                    int start = x;
+                    while (x < bounds.width && pixels[offset + x] != 0) {
+                        x++;
+                    }
+                    if (2 * count + 2 > found.length) {
+                        int[] larger = new int[found.length * 2];
+                        System.arraycopy(found, 0, larger, 0, found.length);
+                        found = larger;
+                    }
+                    found[2 * count] = bounds.x + start;
+                    found[2 * count + 1] = bounds.x + x;
+                    count++;
+                    pixelCount += x - start;
+                }
+                rowStart[y + 1] = count;
+            }
+            runs = new int[2 * count];
+            System.arraycopy(found, 0, runs, 0, runs.length);
+            area = pixelCount;
+        }
+
+        int getIntersectionArea(RunLengthMask other) {
+            int minY = Math.max(bounds.y, other.bounds.y);
+            int maxY = Math.min(bounds.y + bounds.height, other.bounds.y + other.bounds.height);
+            if (minY >= maxY || bounds.x >= other.bounds.x + other.bounds.width || other.bounds.x >= bounds.x + bounds.width) {
+                return 0;
+            }
+
+            int overlap = 0;
+            for (int y = minY; y < maxY; y++) {
+                //both lists of runs are sorted, so they are merged like two sorted lists
+                int a = rowStart[y - bounds.y];
+                int aEnd = rowStart[y - bounds.y + 1];
+                int b = other.rowStart[y - other.bounds.y];
+                int bEnd = other.rowStart[y - other.bounds.y + 1];
+                while (a < aEnd && b < bEnd) {
+                    int start = Math.max(runs[2 * a], other.runs[2 * b]);
+                    int end = Math.min(runs[2 * a + 1], other.runs[2 * b + 1]);
+                    if (start < end) {
+                        overlap += end - start;
+                    }
+                    if (runs[2 * a + 1] < other.runs[2 * b + 1]) {
+                        a++;
+                    } else {
+                        b++;
+                    }
+                }
+            }
+            return overlap;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import trainableSegmentation.WekaSegmentation;
+
+import java.util.List;
+
+/**
+ * <code>StackClassifier</code> applies a Weka classifier on several frames of the same size in one call, by packing them into one stack.
+ * Every call of the classifier sets up its own threads and feature computation, which costs about as much as classifying a small frame.
+ * With a stack that cost is paid once per batch, and the classifier works on several slices at the same time, so all cores are busy
+ * even when one frame is too small to keep them busy.
+ *
+ * Features of a slice are computed from that slice only, so the probability map of a frame is the same as when it is classified alone.
+ *
+ * @see WekaSegmentaionStage#setBatchSize(int)
+ */
+public class StackClassifier {
+
+    private final WekaSegmentation wekaSegmentation;
+
+    /**
+     * @param wekaSegmentation WekaSegmentation with the classifier loaded in it
+     */
+    public StackClassifier(WekaSegmentation wekaSegmentation) {
+        this.wekaSegmentation = wekaSegmentation;
+    }
+
+    /**
+     * @return true if <code>imagePlus</code> can be classified in the same stack as <code>first</code>
+     */
+    public static boolean isCompatible(ImagePlus first, ImagePlus imagePlus) {
+        return imagePlus.getStackSize() == 1 && imagePlus.getWidth() == first.getWidth() && imagePlus.getHeight() == first.getHeight()
+                && imagePlus.getBitDepth() == first.getBitDepth();
+    }
+
+    /**
+     * Classifies the frames in one stack
+     * @param images frames with one slice each, all of the same size and type(see <code>isCompatible</code>)
+     * @param numberOfThreads number of threads of the classifier, 0 lets it decide
+     * @return probability map of each frame(one slice per class), in the same order, or null if the stack could not be classified
+     * @throws IllegalArgumentException if a frame does not fit the first one
+     */
+    public ImagePlus[] apply(List<ImagePlus> images, int numberOfThreads) {
+        ImagePlus first = images.get(0);
+        int width = first.getWidth();
+        int height = first.getHeight();
+        ImageStack stack = new ImageStack(width, height);
+        for (ImagePlus imagePlus : images) {
+            if (!isCompatible(first, imagePlus)) {
+                throw new IllegalArgumentException(imagePlus.getTitle() + " can not be classified in the same stack as " + first.getTitle());
+            }
+            stack.addSlice(imagePlus.getTitle(), imagePlus.getProcessor());
+        }
+
+        ImagePlus result = wekaSegmentation.applyClassifier(new ImagePlus("batch", stack), numberOfThreads, true);
+        if (result == null) {
+            return null;
+        }
+
+        //the probability maps come slice after slice, with one slice per class for each of them
+        ImageStack resultStack = result.getStack();
+        int numberOfClasses = resultStack.getSize() / images.size();
+        if (numberOfClasses == 0 || numberOfClasses * images.size() != resultStack.getSize()) {
+            return null;
+        }
+        ImagePlus[] probabilityMaps = new ImagePlus[images.size()];
+        for (int i = 0; i < images.size(); i++) {
+            ImageStack probabilityMap = new ImageStack(width, height);
+            for (int c = 1; c <= numberOfClasses; c++) {
+                int slice = i * numberOfClasses + c;
+                probabilityMap.addSlice(resultStack.getSliceLabel(slice), resultStack.getProcessor(slice));
+            }
+            probabilityMaps[i] = new ImagePlus(images.get(i).getTitle(), probabilityMap);
+        }
+        return probabilityMaps;
+    }
+}
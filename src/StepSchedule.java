@@ -0,0 +1,146 @@
+/**
+ * <code>StepSchedule</code> decides how often and how long a level set is stepped, and counts the iterations it used.
+ *
+ * The fixed schedule is the loop <code>LevelSetUtility</code> has always used: up to <code>max_iteration</code> calls of
+ * <code>step(step_iteration)</code>, stopping when the level set says it has converged.
+ *
+ * The adaptive schedule has the same budget of <code>max_iteration * step_iteration</code> iterations, but it looks at the
+ * area of the contour after every step:
+ *  - while the area keeps changing by more than <code>FAST_CHANGE</code> per step(and is not slowing down), the next step is made
+ *    twice as long(up to <code>MAXIMUM_STRETCH</code> times <code>step_iteration</code>), so a fast moving front is not checked too often
+ *  - once it changes by less than <code>plateauChange</code> for <code>PLATEAU_STEPS</code> steps in a row, evolution stops,
+ *    even if the level set itself has not converged yet
+ * The change is relative to the smaller of the area inside and outside the contour, so it does not matter which side the level set marks as foreground.
+ *
+ * A schedule counts the iterations of all its runs, so a new one should be made for every roi.
+ */
+public class StepSchedule {
+
+    /**
+     * relative change of area per step above which the front counts as moving fast
+     */
+    private static final double FAST_CHANGE = 0.05;
+
+    /**
+     * number of steps in a row with a small change after which the contour counts as settled
+     */
+    private static final int PLATEAU_STEPS = 2;
+
+    /**
+     * a step is never longer than this times <code>step_iteration</code>
+     */
+    private static final int MAXIMUM_STRETCH = 4;
+
+    /**
+     * a level set that can be stepped, as seen by the schedule
+     */
+    public interface Evolution {
+
+        /**
+         * @return false if the level set has converged
+         */
+        boolean step(int iterations);
+
+        /**
+         * @return number of pixels inside the contour. Only called by the adaptive schedule
+         */
+        long getArea();
+    }
+
+    private final int maxIteration;
+    private final int stepIteration;
+    private final boolean adaptive;
+    private final double plateauChange;
+
+    private int usedIterations = 0;
+    private int steps = 0;
+
+    private StepSchedule(int maxIteration, int stepIteration, boolean adaptive, double plateauChange) {
+        this.maxIteration = maxIteration;
+        this.stepIteration = Math.max(1, stepIteration);
+        this.adaptive = adaptive;
+        this.plateauChange = plateauChange;
+    }
+
+    /**
+     * @return the schedule of <code>getSegImage</code>: <code>max_iteration</code> steps of <code>step_iteration</code> iterations
+     */
+    public static StepSchedule fixed(int max_iteration, int step_iteration) {
+        return new StepSchedule(max_iteration, step_iteration, false, 0);
+    }
+
+    /**
+     * @param plateauChange relative change of area per step below which the contour counts as settled
+     * @return a schedule that stops when the area of the contour stops changing and takes longer steps while it changes fast
+     */
+    public static StepSchedule adaptive(int max_iteration, int step_iteration, double plateauChange) {
+        return new StepSchedule(max_iteration, step_iteration, true, plateauChange);
+    }
+
+    /**
+     * Steps <code>evolution</code> until it converges, settles or runs out of iterations.
+     * If the schedule is run more than once(eg. when a roi is evolved again in a larger window) every run gets the full budget.
+     * @param evolution level set to be evolved
+     * @param totalArea number of pixels of the image the level set works on
+     * @return true if evolution stopped before the budget ran out
+     */
+    public boolean run(Evolution evolution, long totalArea) {
+        if (!adaptive) {
+            for (int step = 0; step < maxIteration; step++) {
+                steps++;
+                usedIterations += stepIteration;
+                if (!evolution.step(stepIteration)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long budget = (long) maxIteration * stepIteration;
+        long used = 0;
+        int stepLength = stepIteration;
+        int plateau = 0;
+        double previousChange = -1;
+        long area = evolution.getArea();
+        while (used < budget) {
+            int iterations = (int) Math.min(stepLength, budget - used);
+            steps++;
+            used += iterations;
+            usedIterations += iterations;
+            if (!evolution.step(iterations)) {
+                return true;
+            }
+
+            long newArea = evolution.getArea();
+            double change = Math.abs(newArea - area) / (double) Math.max(1, Math.min(newArea, totalArea - newArea));
+            area = newArea;
+
+            plateau = change < plateauChange ? plateau + 1 : 0;
+            if (plateau >= PLATEAU_STEPS) {
+                return true;
+            }
+            //a front that is slowing down will soon stop, so a long step would mostly be wasted
+            if (change > FAST_CHANGE && previousChange >= 0 && change >= previousChange / 2) {
+                stepLength = Math.min(stepLength * 2, stepIteration * MAXIMUM_STRETCH);
+            } else {
+                stepLength = stepIteration;
+            }
+            previousChange = change;
+        }
+        return false;
+    }
+
+    /**
+     * @return number of iterations run so far, by all runs(a step is counted in full even if the level set converged in the middle of it)
+     */
+    public int getUsedIterations() {
+        return usedIterations;
+    }
+
+    /**
+     * @return number of calls to <code>step</code>, by all runs
+     */
+    public int getSteps() {
+        return steps;
+    }
+}
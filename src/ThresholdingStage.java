@@ -9,6 +9,8 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
 
 /**
  * <code>ThresholdingStage</code> is the stage for converting the Probability map we get from Weka Segmentation Stage to a binary image, where black represents cell boundry and white represents other area.
@@ -17,11 +19,31 @@ import java.io.File;
  */
 public class ThresholdingStage {
     private static final String title = "Thresholding Stage";
+
+    /**
+     * number of images of the size of the input that are alive while an image is thresholded(used for the memory budget)
+     */
+    private static final int WORKING_COPIES = 4;
     private String inputDir;
     private String outputDir;
     private double lowerThreshold;
     private double upperThreshold;
 
+    /**
+     * number of images processed at the same time by <code>apply()</code>
+     */
+    private int numberOfThreads = 1;
+
+    /**
+     * if true, <code>apply()</code> skips the images whose output is up to date according to the manifest of <code>outputDir</code>
+     */
+    private boolean incremental = true;
+
+    /**
+     * if not null, the images are shared with other processes and only the ones this process claims are done by <code>apply()</code>
+     */
+    private WorkQueue workQueue;
+
     /**
      * Constructor.
      * Pass the address of directory containing the input images and the directory in which you want to store the output images
@@ -95,24 +117,45 @@ public class ThresholdingStage {
         return imagePlus;
     }
 
+    /**
+     * Converts a probability map(as given by <code>WekaSegmentaionStage</code>) into a binary image with less noise.
+     * This is the in-memory version of <code>applyThreshold(File)</code>. <code>probabilityMap</code> is changed in place.
+     *
+     * @param probabilityMap probability map. If it has more than one slice, the current slice is deleted before thresholding
+     * @param lowerThreshold specifies the lower threshold for thresholding
+     * @param upperThreshold specifies the upper threshold for thresholding
+     * @return binary image(black represents cell boundry)
+     */
+    public static ImagePlus apply(ImagePlus probabilityMap, double lowerThreshold, double upperThreshold) {
+        //TODO: Handle this Slice Thing
+        if (probabilityMap.getStackSize() > 1) {
+            IJ.run(probabilityMap, "Delete Slice", "");
+        }
+        applyThreshold(probabilityMap, lowerThreshold, upperThreshold);
+        return morph(probabilityMap);
+    }
+
     /**
      * Returns an image with less noise
+     * Same as running the commands Close- x2, Fill Holes, Close- x2, Dilate, Erode x2, but done by <code>BinaryMorphology</code> in one go
      *
      * @param imagePlus Raw threshold image(binary)
      * @return A image(binary) with less noise
      */
-    private static ImagePlus morph(ImagePlus imagePlus) {
+    static ImagePlus morph(ImagePlus imagePlus) {
         //Morphological Operations
         // TODO: Improve
         // Try Watershed Segmentation for preventing under-segmentation
-        IJ.run(imagePlus, "Close-", "");
-        IJ.run(imagePlus, "Close-", "");
-        IJ.run(imagePlus, "Fill Holes", "");
-        IJ.run(imagePlus, "Close-", "");
-        IJ.run(imagePlus, "Close-", "");
-        IJ.run(imagePlus, "Dilate", "");
-        IJ.run(imagePlus, "Erode", "");
-        IJ.run(imagePlus, "Erode", "");
+        BinaryMorphology binaryMorphology = new BinaryMorphology(imagePlus.getWidth(), imagePlus.getHeight());
+        binaryMorphology.apply(imagePlus.getProcessor(),
+                BinaryMorphology.CLOSE,
+                BinaryMorphology.CLOSE,
+                BinaryMorphology.FILL_HOLES,
+                BinaryMorphology.CLOSE,
+                BinaryMorphology.CLOSE,
+                BinaryMorphology.DILATE,
+                BinaryMorphology.ERODE,
+                BinaryMorphology.ERODE);
 
         return imagePlus;
     }
@@ -167,42 +210,126 @@ public class ThresholdingStage {
 
     /**
      * loops over all images in <code>inputDir</code> and calls the function <code>applyThreshold(ImagePlus)</code>
+     * @return number of images that failed
      */
-    public void apply() {
-        File inputImagesFolder = new File(inputDir);
-        for (File inputImage : inputImagesFolder.listFiles()) {
-            if (inputImage.isFile()) {
-                applyThreshold(inputImage);
+    public int apply() {
+        List<File> inputImages = BatchExecutor.listFiles(inputDir);
+        final BatchManifest batchManifest = new BatchManifest(outputDir);
+        final String parameterHash = BatchManifest.hash("threshold " + lowerThreshold + " " + upperThreshold);
+
+        BatchExecutor<File> batchExecutor = new BatchExecutor<File>(numberOfThreads);
+        batchExecutor.setMemoryBudget(MemoryBudget.getDefault(), new BatchExecutor.Footprint<File>() {
+            @Override
+            public long estimate(File inputImage) {
+                return MemoryBudget.estimate(inputImage, WORKING_COPIES);
             }
+        });
+        if (workQueue != null) {
+            batchExecutor.setWorkQueue(workQueue, BatchExecutor.FILE_NAME);
         }
+        List<BatchExecutor.Failure<File>> failures = batchExecutor.execute(inputImages, new BatchExecutor.Task<File>() {
+            @Override
+            public void process(File inputImage) throws IOException {
+                String outputFileName = getOutputFileName(inputImage);
+                String inputHash = BatchManifest.hash(inputImage);
+                if (incremental && batchManifest.isUpToDate(outputFileName, inputHash, parameterHash)) {
+                    Metrics.increment("threshold_skipped");
+                    return;
+                }
+                if (!applyThreshold(inputImage)) {
+                    throw new IOException("Not able to threshold " + inputImage.getName());
+                }
+                batchManifest.record(outputFileName, inputHash, parameterHash);
+            }
+        });
+        return BatchExecutor.report("Thresholding", failures);
     }
 
     /**
      * Apply threshold(using previously specified threshold values) and save the result in the specified outputDir
      * @param imageFile File object that specifies that input image file
+     * @return true if the result was written
      */
-    public void applyThreshold(File imageFile) {
-        ImagePlus imagePlus = new ImagePlus(imageFile.getAbsolutePath());
-        //TODO: Handle this Slice Thing
-        IJ.run(imagePlus, "Delete Slice", "");
+    public boolean applyThreshold(File imageFile) {
+        long start = Metrics.start();
+        ImagePlus imagePlus = readProbabilityMap(imageFile);
+        Metrics.stop("threshold_read_seconds", start);
         if (imagePlus != null) {
 
-            IJ.setThreshold(imagePlus, lowerThreshold, upperThreshold, "Black & White");
-            IJ.run(imagePlus, "Convert to Mask", "");
-            imagePlus = morph(imagePlus);
-            //make outputFileName
-            String outputFileName = imageFile.getName();
+            start = Metrics.start();
+            imagePlus = apply(imagePlus, lowerThreshold, upperThreshold);
+            Metrics.stop("threshold_process_seconds", start);
+            //make outputFileName. Binary images are written as uncompressed tiff so that no pixel changes
+            String outputFileName = getOutputFileName(imageFile);
             IJ.log(outputFileName);
-            new FileSaver(imagePlus).saveAsJpeg(outputDir + File.separator + outputFileName);
-
-            // force garbage collection (important for large images)
-            imagePlus = null;
-            System.gc();
+            start = Metrics.start();
+            boolean saved = new FileSaver(imagePlus).saveAsTiff(outputDir + File.separator + outputFileName);
+            Metrics.stop("threshold_write_seconds", start);
+            Metrics.increment(saved ? "threshold_images" : "threshold_failures");
+            return saved;
         } else {
             IJ.error("Not able to read image");
+            return false;
         }
     }
 
+    /**
+     * @return name of the file in outputDir that <code>applyThreshold(imageFile)</code> writes
+     */
+    private static String getOutputFileName(File imageFile) {
+        return FloatImageIO.withExtension(imageFile.getName(), ".tif");
+    }
+
+    /**
+     * Reads a probability map, either in the lossless format written by <code>WekaSegmentaionStage</code> or in any format ImageJ can open
+     * @param imageFile File object that specifies that input image file
+     * @return the probability map or null if it could not be read
+     */
+    private static ImagePlus readProbabilityMap(File imageFile) {
+        if (FloatImageIO.isFloatImage(imageFile)) {
+            try {
+                return FloatImageIO.read(imageFile);
+            } catch (IOException e) {
+                IJ.log("Not able to read " + imageFile.getName() + ": " + e.getMessage());
+                return null;
+            }
+        }
+        return new ImagePlus(imageFile.getAbsolutePath());
+    }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    /**
+     * @param numberOfThreads number of images processed at the same time by <code>apply()</code>
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @param incremental if true, <code>apply()</code> skips the images whose output is up to date. If false, all images are processed again
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public WorkQueue getWorkQueue() {
+        return workQueue;
+    }
+
+    /**
+     * @param workQueue queue shared with other processes working on the same folders, null to do all the images
+     */
+    public void setWorkQueue(WorkQueue workQueue) {
+        this.workQueue = workQueue;
+    }
+
     public static void main(String[] args) {
         ThresholdingStage obj = new ThresholdingStage("/home/sid/Study/GSOC/GSoc/src/data/Data Annotation/YetAnotherProbMap", "/home/sid/Study/GSOC/GSoc/src/data/Data Annotation/YetAnotherThreshold", 0.0, 0.6);
         obj.apply();
@@ -0,0 +1,364 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import trainableSegmentation.FeatureStack;
+import trainableSegmentation.WekaSegmentation;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <code>TiledClassifier</code> applies a Weka classifier on an image tile by tile, so that the feature stack is never built for the whole image.
+ * Peak memory then depends on the tile size instead of the image size(apart from the probability map itself).
+ *
+ * Each tile is classified together with a halo around it that is at least as wide as the largest enabled filter of the feature stack, and only the
+ * inner part of the result is kept. So every pixel is classified from the same neighbourhood as when the whole image is classified at once,
+ * and the stitched probability map has no seams. This does not hold for the Lipschitz and anisotropic diffusion features, whose reach
+ * depends on the image and not on the settings: with one of them enabled the tiles can differ a little from the whole image(see <code>isSeamless()</code>).
+ *
+ * Tiles are classified by a pool of <code>numberOfThreads</code> threads, at most <code>numberOfThreads</code> tiles(and feature stacks) are alive at the same time.
+ * They share the processors given to the image by <code>setClassifierThreads</code>.
+ *
+ * If the region of the embryo is given, the tiles are laid over the bounds of the embryo only, and tiles with no px within <code>margin</code>
+ * px of the embryo are not classified at all. The px that are not classified belong to <code>outsideClass</code>(probability 1 for it, 0 for
+ * the others), as the background is thrown away by Level Set anyway.
+ *
+ * @see WekaSegmentaionStage#setTileSize(int)
+ */
+public class TiledClassifier {
+
+    /**
+     * extra px added to the halo, for derivatives taken on blurred images
+     */
+    private static final int HALO_MARGIN = 2;
+
+    /**
+     * largest integration scale of the structure tensor features
+     */
+    private static final int STRUCTURE_INTEGRATION_SCALE = 3;
+
+    /**
+     * half size of the largest Gabor kernel(3 standard deviations of the elongated axis)
+     */
+    private static final int GABOR_REACH = 24;
+
+    /**
+     * largest spatial radius of the bilateral filter
+     */
+    private static final int BILATERAL_REACH = 20;
+
+    private final WekaSegmentation wekaSegmentation;
+    private int tileSize = 1024;
+    private int numberOfThreads = 1;
+
+    /**
+     * processors of the image, shared by the tiles classified at the same time. 0 lets the classifier decide
+     */
+    private int classifierThreads = 0;
+
+    /**
+     * px of the background this close to the embryo are still classified
+     */
+    private int margin = 8;
+
+    /**
+     * class of the px that are not classified, 0 based
+     */
+    private int outsideClass = 1;
+
+    /**
+     * @param wekaSegmentation WekaSegmentation with the classifier loaded in it
+     */
+    public TiledClassifier(WekaSegmentation wekaSegmentation) {
+        this.wekaSegmentation = wekaSegmentation;
+    }
+
+    /**
+     * Width of the border around each tile that is classified but not kept, from the reach of the enabled features.
+     * Gaussian based filters reach about 4 sigma and membrane projections half of the patch size. The structure tensor smooths once more
+     * with its integration scale, the neighbours are shifted by up to sigma, Kuwahara works on a whole patch and Gabor and the bilateral
+     * filter have kernels of their own.
+     * @return halo in px
+     */
+    public int getHalo() {
+        double sigma = wekaSegmentation.getMaximumSigma();
+        int patchSize = wekaSegmentation.getMembranePatchSize();
+        int reach = (int) Math.ceil(4 * sigma) + patchSize / 2;
+        if (isEnabled(FeatureStack.STRUCTURE)) {
+            reach = Math.max(reach, (int) Math.ceil(4 * (sigma + STRUCTURE_INTEGRATION_SCALE)));
+        }
+        if (isEnabled(FeatureStack.NEIGHBORS) || wekaSegmentation.useNeighborhood()) {
+            reach = Math.max(reach, (int) Math.ceil(5 * sigma));
+        }
+        if (isEnabled(FeatureStack.KUWAHARA)) {
+            reach = Math.max(reach, patchSize);
+        }
+        if (isEnabled(FeatureStack.GABOR)) {
+            reach = Math.max(reach, GABOR_REACH);
+        }
+        if (isEnabled(FeatureStack.BILATERAL)) {
+            reach = Math.max(reach, BILATERAL_REACH);
+        }
+        return reach + HALO_MARGIN;
+    }
+
+    /**
+     * @return false if a feature whose reach no halo can cover is enabled(Lipschitz, anisotropic diffusion). Tiled results then
+     * differ a little from classifying the whole image at once
+     */
+    public boolean isSeamless() {
+        return !isEnabled(FeatureStack.LIPSCHITZ) && !isEnabled(FeatureStack.ANISOTROPIC_DIFFUSION);
+    }
+
+    private boolean isEnabled(int feature) {
+        boolean[] enabledFeatures = wekaSegmentation.getEnabledFeatures();
+        return enabledFeatures != null && feature < enabledFeatures.length && enabledFeatures[feature];
+    }
+
+    /**
+     * Applies the classifier on <code>imagePlus</code>. Images that fit in one tile, and stacks, are classified at once.
+     * @param imagePlus image to be classified
+     * @return probability map, one slice per class, or null if a tile could not be classified
+     */
+    public ImagePlus apply(final ImagePlus imagePlus) {
+        return apply(imagePlus, null);
+    }
+
+    /**
+     * Applies the classifier on the part of <code>imagePlus</code> near the embryo. Stacks are classified at once.
+     * If the embryo has no px(eg. its boundry was not found), the whole image is classified.
+     *
+     * @param imagePlus image to be classified
+     * @param embryo    binary image of the size of imagePlus, non zero for the px of the embryo(see <code>EmbryoBoundryDetection.getEmbryoRegion</code>).
+     *                  null classifies the whole image
+     * @return probability map, one slice per class, or null if a tile could not be classified
+     */
+    public ImagePlus apply(final ImagePlus imagePlus, ImageProcessor embryo) {
+        final int width = imagePlus.getWidth();
+        final int height = imagePlus.getHeight();
+        Rectangle area = new Rectangle(0, 0, width, height);
+        if (embryo != null && imagePlus.getStackSize() == 1) {
+            Rectangle bounds = getBounds(embryo);
+            if (bounds == null) {
+                Metrics.increment("weka_masked_fallbacks");
+                embryo = null;
+            } else {
+                bounds.grow(margin, margin);
+                area = bounds.intersection(area);
+            }
+        } else {
+            embryo = null;
+        }
+        if (embryo == null && (imagePlus.getStackSize() > 1 || (width <= tileSize && height <= tileSize))) {
+            return wekaSegmentation.applyClassifier(imagePlus, getThreadsPerTile(), true);
+        }
+
+        final ImageProcessor imageProcessor = imagePlus.getProcessor();
+        final int halo = getHalo();
+        List<Rectangle> tiles = new ArrayList<Rectangle>();
+        long classifiedPixels = 0;
+        for (int y = area.y, tileHeight; y < area.y + area.height; y += tileHeight) {
+            tileHeight = Math.min(tileSize, area.y + area.height - y);
+            for (int x = area.x, tileWidth; x < area.x + area.width; x += tileWidth) {
+                tileWidth = Math.min(tileSize, area.x + area.width - x);
+                Rectangle tile = new Rectangle(x, y, tileWidth, tileHeight);
+                if (embryo != null && !isNear(embryo, tile)) {
+                    Metrics.increment("weka_masked_skipped_tiles");
+                    continue;
+                }
+                tiles.add(tile);
+                classifiedPixels += (long) tileWidth * tileHeight;
+            }
+        }
+        if (embryo != null) {
+            Metrics.observe("weka_masked_classified_fraction", classifiedPixels / ((double) width * height));
+        }
+        final float[] outsideProbabilities = embryo == null ? null : new float[wekaSegmentation.getNumOfClasses()];
+        if (outsideProbabilities != null && outsideClass >= 0 && outsideClass < outsideProbabilities.length) {
+            outsideProbabilities[outsideClass] = 1;
+        }
+
+        //slices of the probability map, made when the first tile is done
+        final ImageStack[] probabilityMap = new ImageStack[1];
+        BatchExecutor<Rectangle> batchExecutor = new BatchExecutor<Rectangle>(numberOfThreads);
+        List<BatchExecutor.Failure<Rectangle>> failures = batchExecutor.execute(tiles, new BatchExecutor.Task<Rectangle>() {
+            @Override
+            public void process(Rectangle tile) {
+                Rectangle window = new Rectangle(tile);
+                window.grow(halo, halo);
+                window = window.intersection(new Rectangle(0, 0, width, height));
+
+                ImageProcessor windowProcessor;
+                synchronized (imageProcessor) {
+                    //crop works on the roi of the shared processor
+                    imageProcessor.setRoi(window);
+                    windowProcessor = imageProcessor.crop();
+                    imageProcessor.resetRoi();
+                }
+                ImagePlus windowImage = new ImagePlus(imagePlus.getTitle(), windowProcessor);
+
+                long start = Metrics.start();
+                ImagePlus result = wekaSegmentation.applyClassifier(windowImage, getThreadsPerTile(), true);
+                Metrics.stop("weka_tile_seconds", start);
+                if (result == null) {
+                    throw new IllegalStateException("Classifier returned no result for tile " + tile);
+                }
+
+                ImageStack windowStack = result.getStack();
+                ImageStack stack = getProbabilityMap(probabilityMap, windowStack, width, height, outsideProbabilities);
+                for (int slice = 1; slice <= windowStack.getSize(); slice++) {
+                    copy(windowStack.getProcessor(slice), tile.x - window.x, tile.y - window.y, stack.getProcessor(slice), tile);
+                }
+            }
+        });
+        if (!failures.isEmpty()) {
+            return null;
+        }
+
+        ImagePlus result = new ImagePlus("Probability maps", probabilityMap[0]);
+        result.setCalibration(imagePlus.getCalibration());
+        return result;
+    }
+
+    /*
+    made by the first tile that finishes, with the number of slices and labels the classifier gives.
+    If outsideProbabilities is not null, the px that no tile covers keep those values
+     */
+    private static ImageStack getProbabilityMap(ImageStack[] probabilityMap, ImageStack windowStack, int width, int height, float[] outsideProbabilities) {
+        synchronized (probabilityMap) {
+            if (probabilityMap[0] == null) {
+                ImageStack stack = new ImageStack(width, height);
+                for (int slice = 1; slice <= windowStack.getSize(); slice++) {
+                    FloatProcessor floatProcessor = new FloatProcessor(width, height);
+                    if (outsideProbabilities != null && slice <= outsideProbabilities.length && outsideProbabilities[slice - 1] != 0) {
+                        Arrays.fill((float[]) floatProcessor.getPixels(), outsideProbabilities[slice - 1]);
+                    }
+                    stack.addSlice(windowStack.getSliceLabel(slice), floatProcessor);
+                }
+                probabilityMap[0] = stack;
+            }
+            return probabilityMap[0];
+        }
+    }
+
+    /*
+    bounds of the non zero px of mask, null if there are none
+     */
+    private static Rectangle getBounds(ImageProcessor mask) {
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        int minX = width, minY = height, maxX = -1, maxY = -1;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (mask.get(x, y) != 0) {
+                    minX = Math.min(minX, x);
+                    maxX = Math.max(maxX, x);
+                    minY = Math.min(minY, y);
+                    maxY = Math.max(maxY, y);
+                }
+            }
+        }
+        return maxX < 0 ? null : new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    /*
+    true if a px of the embryo is within margin px of tile
+     */
+    private boolean isNear(ImageProcessor embryo, Rectangle tile) {
+        Rectangle grown = new Rectangle(tile);
+        grown.grow(margin, margin);
+        grown = grown.intersection(new Rectangle(0, 0, embryo.getWidth(), embryo.getHeight()));
+        for (int y = grown.y; y < grown.y + grown.height; y++) {
+            for (int x = grown.x; x < grown.x + grown.width; x++) {
+                if (embryo.get(x, y) != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+    copies the part of the window result that belongs to tile. Tiles don't overlap, so threads never write the same pixel
+     */
+    private static void copy(ImageProcessor window, int offsetX, int offsetY, ImageProcessor target, Rectangle tile) {
+        float[] source = (float[]) window.convertToFloat().getPixels();
+        float[] destination = (float[]) target.getPixels();
+        int windowWidth = window.getWidth();
+        int targetWidth = target.getWidth();
+        for (int y = 0; y < tile.height; y++) {
+            System.arraycopy(source, (offsetY + y) * windowWidth + offsetX, destination, (tile.y + y) * targetWidth + tile.x, tile.width);
+        }
+    }
+
+    /*
+    the processors of the image are shared between the tiles classified at the same time(0 lets the classifier decide)
+     */
+    private int getThreadsPerTile() {
+        if (numberOfThreads <= 1) {
+            return classifierThreads;
+        }
+        int processors = classifierThreads > 0 ? classifierThreads : Runtime.getRuntime().availableProcessors();
+        return Math.max(1, processors / numberOfThreads);
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @param tileSize width and height(in px) of a tile, without the halo
+     */
+    public void setTileSize(int tileSize) {
+        this.tileSize = Math.max(1, tileSize);
+    }
+
+    public int getMargin() {
+        return margin;
+    }
+
+    /**
+     * @param margin px of the background within this distance(in px) of the embryo are still classified
+     */
+    public void setMargin(int margin) {
+        this.margin = Math.max(0, margin);
+    }
+
+    public int getOutsideClass() {
+        return outsideClass;
+    }
+
+    /**
+     * @param outsideClass class(0 based) of the px that are not classified. The default is the second class, the one
+     *                     <code>ThresholdingStage</code> thresholds, with probability 1, so they are never taken as cell interior
+     */
+    public void setOutsideClass(int outsideClass) {
+        this.outsideClass = outsideClass;
+    }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    /**
+     * @param numberOfThreads number of tiles classified at the same time
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+    }
+
+    public int getClassifierThreads() {
+        return classifierThreads;
+    }
+
+    /**
+     * @param classifierThreads processors given to this image, eg. its share when several images are classified at the same time.
+     *                          0 lets the classifier decide(all processors)
+     */
+    public void setClassifierThreads(int classifierThreads) {
+        this.classifierThreads = Math.max(0, classifierThreads);
+    }
+}
@@ -0,0 +1,190 @@
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.plugin.RoiEnlarger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <code>TimeLapseTracker</code> evolves the cells of the frames of a time-lapse one frame after another, starting every frame from the
+ * contours of the previous one. Cells move only a few px between two frames, so a contour of the previous frame shrunk by
+ * <code>shrink</code> px is a much better start than the thresholded interior, and a few steps are enough to reach the membrane again.
+ * No particle analysis is done for such a frame and every roi gets at most <code>warmSteps</code> steps.
+ *
+ * Tracking of a cell counts as lost when its contour vanishes or its area changes by more than <code>maximumAreaChange</code> times.
+ * A lost cell is evolved again from the same seed with the full budget of its tier. When more than <code>maximumLostFraction</code>
+ * of the cells are lost(eg. the embryo moved), the frame is done from scratch like an independent image.
+ * Every <code>keyFrameInterval</code> frames are also done from scratch, so that new cells(after a division) are found.
+ *
+ * The frames must be given in the order of time. A tracker keeps the contours of the last frame, so it should not be shared between two sequences.
+ *
+ * @see LevelSetStage#setTimeLapse(boolean)
+ */
+public class TimeLapseTracker {
+
+    private int shrink = 2;
+    private int warmSteps = 5;
+    private double maximumAreaChange = 1.5;
+    private double maximumLostFraction = 0.25;
+    private int keyFrameInterval = 25;
+
+    /**
+     * contours of the last frame, null if the next frame is to be done from scratch
+     */
+    private Roi[] previousRois;
+
+    /**
+     * number of frames since the last frame done from scratch
+     */
+    private int framesSinceKeyFrame = 0;
+
+    /**
+     * Finds the cells of the next frame of the sequence.
+     *
+     * @param originalImage      the original image of the frame
+     * @param thresholdImage     threshold image of the frame, only used when the frame is done from scratch
+     * @param cellMask           cell mask of the frame, only used when the frame is done from scratch
+     * @param levelSetParameters settings shared by all the rois
+     * @param numberOfThreads    number of worker threads used for curve evolution
+     * @return evolved rois of the frame, without overlapping ones
+     */
+    public Roi[] track(ImagePlus originalImage, ImagePlus thresholdImage, ImagePlus cellMask, LevelSetParameters levelSetParameters, int numberOfThreads) {
+        Roi[] rois = null;
+        if (previousRois != null && previousRois.length > 0 && framesSinceKeyFrame < keyFrameInterval) {
+            rois = warmStart(originalImage, levelSetParameters, numberOfThreads);
+        }
+        if (rois == null) {
+            Metrics.increment("timelapse_key_frames");
+            rois = LevelSetStage.getFinalRois(originalImage, thresholdImage, cellMask, levelSetParameters, numberOfThreads);
+            framesSinceKeyFrame = 0;
+        } else {
+            Metrics.increment("timelapse_warm_frames");
+            framesSinceKeyFrame++;
+        }
+        previousRois = rois;
+        return rois;
+    }
+
+    /**
+     * Forgets the last frame, so that the next frame is done from scratch. To be called when a frame is skipped or failed
+     */
+    public void reset() {
+        previousRois = null;
+    }
+
+    /**
+     * @return rois of the frame evolved from the contours of the previous frame, or null if tracking is lost
+     */
+    private Roi[] warmStart(ImagePlus originalImage, LevelSetParameters levelSetParameters, int numberOfThreads) {
+        List<Roi> seeds = new ArrayList<Roi>(previousRois.length);
+        List<Roi> tracked = new ArrayList<Roi>(previousRois.length);
+        for (Roi previousRoi : previousRois) {
+            Roi seed = RoiEnlarger.enlarge((Roi) previousRoi.clone(), -shrink);
+            if (seed != null && RoiStore.getArea(seed) > 0) {
+                seeds.add(seed);
+                tracked.add(previousRoi);
+            }
+        }
+        Roi[] seedArray = seeds.toArray(new Roi[seeds.size()]);
+        IntegralImage integralImage = new IntegralImage(originalImage.getProcessor());
+
+        LevelSetParameters warmParameters = new LevelSetParameters(levelSetParameters);
+        warmParameters.setStepLimit(warmSteps);
+        Roi[] evolved = LevelSetStage.evolveRois(originalImage, integralImage, seedArray, warmParameters, numberOfThreads);
+
+        //cells whose contour went wrong in the short budget get the full one
+        List<Roi> lostSeeds = new ArrayList<Roi>();
+        List<Integer> lostIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < evolved.length; i++) {
+            if (isLost(evolved[i], tracked.get(i))) {
+                lostSeeds.add(seedArray[i]);
+                lostIndexes.add(i);
+            }
+        }
+        int lost = lostIndexes.size() + previousRois.length - seedArray.length;
+        Metrics.add("timelapse_lost_rois", lost);
+        if (lost > maximumLostFraction * previousRois.length) {
+            Metrics.increment("timelapse_fallbacks");
+            return null;
+        }
+        if (!lostSeeds.isEmpty()) {
+            Roi[] retried = LevelSetStage.evolveRois(originalImage, integralImage, lostSeeds.toArray(new Roi[lostSeeds.size()]),
+                    levelSetParameters, numberOfThreads);
+            for (int i = 0; i < retried.length; i++) {
+                int index = lostIndexes.get(i);
+                evolved[index] = isLost(retried[i], tracked.get(index)) ? null : retried[i];
+            }
+        }
+        return LevelSetStage.removeOverlappingRois(evolved);
+    }
+
+    private boolean isLost(Roi evolvedRoi, Roi previousRoi) {
+        if (evolvedRoi == null) {
+            return true;
+        }
+        double ratio = RoiStore.getArea(evolvedRoi) / (double) Math.max(1, RoiStore.getArea(previousRoi));
+        return ratio > maximumAreaChange || ratio < 1 / maximumAreaChange;
+    }
+
+    /**
+     * @return the settings that change the contours found, for the manifest of the output folder
+     */
+    public String getParameterDescription() {
+        return "time-lapse " + shrink + " " + warmSteps + " " + maximumAreaChange + " " + maximumLostFraction + " " + keyFrameInterval;
+    }
+
+    public int getShrink() {
+        return shrink;
+    }
+
+    /**
+     * @param shrink number of px the contours of the previous frame are shrunk by before they are evolved
+     */
+    public void setShrink(int shrink) {
+        this.shrink = shrink;
+    }
+
+    public int getWarmSteps() {
+        return warmSteps;
+    }
+
+    /**
+     * @param warmSteps maximum number of steps of a roi started from the previous frame
+     */
+    public void setWarmSteps(int warmSteps) {
+        this.warmSteps = warmSteps;
+    }
+
+    public double getMaximumAreaChange() {
+        return maximumAreaChange;
+    }
+
+    /**
+     * @param maximumAreaChange a cell whose area grows or shrinks by more than this factor between two frames is lost
+     */
+    public void setMaximumAreaChange(double maximumAreaChange) {
+        this.maximumAreaChange = maximumAreaChange;
+    }
+
+    public double getMaximumLostFraction() {
+        return maximumLostFraction;
+    }
+
+    /**
+     * @param maximumLostFraction if more than this fraction of the cells is lost, the frame is done from scratch
+     */
+    public void setMaximumLostFraction(double maximumLostFraction) {
+        this.maximumLostFraction = maximumLostFraction;
+    }
+
+    public int getKeyFrameInterval() {
+        return keyFrameInterval;
+    }
+
+    /**
+     * @param keyFrameInterval a frame out of this many is done from scratch
+     */
+    public void setKeyFrameInterval(int keyFrameInterval) {
+        this.keyFrameInterval = keyFrameInterval;
+    }
+}
@@ -2,8 +2,8 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
 import ij.io.DirectoryChooser;
-import ij.io.FileSaver;
 import ij.io.OpenDialog;
+import trainableSegmentation.FeatureStackArray;
 import trainableSegmentation.WekaSegmentation;
 
 import javax.swing.*;
@@ -11,6 +11,12 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * WekaSegmentaionStage is kind of the most crucial in this PlugIn.
@@ -25,10 +31,62 @@ import java.io.File;
 public class WekaSegmentaionStage {
 
     private final static String title = "Detecting interiors of cell using Weka Segmentation";
+
+    /**
+     * number of images of the size of the input that are alive while an image is classified(used for the memory budget). Most of it is the feature stack
+     */
+    private static final int WORKING_COPIES = 100;
+
+    /**
+     * px of the background this close to the embryo are classified when masking. Level Set dilates the cell mask by 4 px
+     */
+    private static final int EMBRYO_MARGIN = 8;
     private String inputImageFolder;
     private String outpurImageFolder;
     private String classifierModelFileAddress;
-    private WekaSegmentation wekaSegmentaion = new WekaSegmentation();
+    private WekaSegmentation wekaSegmentaion;
+
+    /**
+     * number of images classified at the same time by <code>apply()</code>
+     */
+    private int numberOfThreads = 1;
+
+    /**
+     * if true, <code>apply()</code> skips the images whose output is up to date according to the manifest of the output folder
+     */
+    private boolean incremental = true;
+
+    /**
+     * if more than 0, images larger than this(in px) are classified tile by tile with <code>TiledClassifier</code>
+     */
+    private int tileSize = 0;
+
+    /**
+     * number of tiles of one image classified at the same time
+     */
+    private int tileThreads = 1;
+
+    /**
+     * if not null, feature stacks are taken from(and added to) this cache. Not used for tiled images
+     */
+    private FeatureCache featureCache;
+
+    /**
+     * if more than 1, up to this many images of the same size are classified in one stack with <code>StackClassifier</code>.
+     * Not used with tiling or the feature cache
+     */
+    private int batchSize = 1;
+
+    /**
+     * if not null, only the part of every image near the embryo is classified, the embryo being read from the cell mask of the same
+     * name in this folder(the output of <code>EmbryoBoundryDetection</code>)
+     */
+    private String embryoMaskFolder;
+
+    /**
+     * if not null, the images are shared with other processes and only the ones this process claims are done by <code>apply()</code>
+     */
+    private WorkQueue workQueue;
 
     /**
      * @param inputImageFolder
@@ -64,20 +122,19 @@ public class WekaSegmentaionStage {
     }
 
     /**
-     * TRY NOT TO USE THIS
      * This is a really heavy code.
+     * The classifier is loaded only once and then taken from <code>ClassifierCache</code>.
      * @param imagePlus inout image
      * @param wekaClassifier address of the classifier or model used
      * @return classified image
      */
     public static ImagePlus applyClassifier(ImagePlus imagePlus, String wekaClassifier) {
 
-        //Weka Trainable Segmentation tool created
-        WekaSegmentation wekaSegmentation = new WekaSegmentation();
-
-        //Loading classifier using the address in "wekaClassifier"
-        // ooooh this is going to take a lot of time
-        wekaSegmentation.loadClassifier(wekaClassifier); //slooooww
+        //Weka Trainable Segmentation tool with the classifier at "wekaClassifier" loaded in it
+        WekaSegmentation wekaSegmentation = ClassifierCache.get(wekaClassifier);
+        if (wekaSegmentation == null) {
+            return null;
+        }
 
         if (imagePlus == null) {
             //if not able to read imagePlus
@@ -86,22 +143,153 @@ public class WekaSegmentaionStage {
         }
 
         // apply classifier and get results (0 indicates number of threads is auto-detected) and true for probability map
-        ImagePlus result = wekaSegmentation.applyClassifier(imagePlus, 0, true); //freaking slow
+        return wekaSegmentation.applyClassifier(imagePlus, 0, true); //freaking slow
+    }
+
 
-        //for clearing memory
-        System.gc(); //slow
+    /**
+     * Classifies the images of the input folder
+     * @return number of images that failed
+     */
+    public int apply() {
+        List<File> inputImages = BatchExecutor.listFiles(inputImageFolder);
+        final BatchManifest batchManifest = new BatchManifest(outpurImageFolder);
+        final String modelHash;
+        try {
+            //outputs made with another model(or another version of it) are made again
+            String hash = BatchManifest.hash(new File(classifierModelFileAddress));
+            modelHash = embryoMaskFolder == null ? hash : BatchManifest.hash(hash + " masked " + EMBRYO_MARGIN);
+        } catch (IOException e) {
+            IJ.error("Not able to read classifier model: " + e.getMessage());
+            return inputImages.size();
+        }
+
+        if (batchSize > 1 && tileSize <= 0 && featureCache == null && embryoMaskFolder == null) {
+            return applyBatched(inputImages, batchManifest, modelHash);
+        }
 
-        return result;
+        if (tileSize > 0 && wekaSegmentaion != null && !new TiledClassifier(wekaSegmentaion).isSeamless()) {
+            IJ.log("The Lipschitz or anisotropic diffusion features are enabled, tiled images can differ a little at the edges of the tiles");
+        }
+
+        BatchExecutor<File> batchExecutor = new BatchExecutor<File>(numberOfThreads);
+        batchExecutor.setMemoryBudget(MemoryBudget.getDefault(), new BatchExecutor.Footprint<File>() {
+            @Override
+            public long estimate(File inputImage) {
+                return estimateFootprint(inputImage);
+            }
+        });
+        if (workQueue != null) {
+            batchExecutor.setWorkQueue(workQueue, BatchExecutor.FILE_NAME);
+        }
+        List<BatchExecutor.Failure<File>> failures = batchExecutor.execute(inputImages, new BatchExecutor.Task<File>() {
+            @Override
+            public void process(File inputImage) throws IOException {
+                String outputFileName = getOutputFileName(inputImage);
+                File embryoMask = getEmbryoMask(inputImage);
+                String inputHash = embryoMask == null ? BatchManifest.hash(inputImage) : BatchManifest.hash(inputImage, embryoMask);
+                if (incremental && batchManifest.isUpToDate(outputFileName, inputHash, modelHash)) {
+                    Metrics.increment("weka_skipped");
+                    return;
+                }
+                if (!applyClassifier(inputImage, inputHash)) {
+                    throw new IOException("Not able to classify " + inputImage.getName());
+                }
+                batchManifest.record(outputFileName, inputHash, modelHash);
+            }
+        });
+        return BatchExecutor.report("Weka Segmentation", failures);
     }
 
+    /**
+     * Classifies the images that are not up to date in stacks of up to <code>batchSize</code> images of the same size.
+     * Images whose size can not be read from their header, and stacks, are classified alone.
+     * Batches are made from the whole folder before the up-to-date check, so every process sharing a work queue makes the same batches,
+     * whatever its snapshot of the manifest
+     * @return number of batches with an image that failed
+     */
+    private int applyBatched(List<File> inputImages, final BatchManifest batchManifest, final String modelHash) {
+        List<List<File>> batches = new ArrayList<List<File>>();
+        Map<String, List<File>> openBatches = new LinkedHashMap<String, List<File>>();
+        for (File inputImage : inputImages) {
+            int[] dimensions = MemoryBudget.getDimensions(inputImage);
+            String size = dimensions == null || dimensions[2] > 1 ? null : dimensions[0] + "x" + dimensions[1];
+            List<File> batch = size == null ? null : openBatches.get(size);
+            if (batch == null) {
+                batch = new ArrayList<File>();
+                if (size != null) {
+                    openBatches.put(size, batch);
+                }
+            }
+            batch.add(inputImage);
+            if (size == null || batch.size() == batchSize) {
+                openBatches.remove(size);
+                batches.add(batch);
+            }
+        }
+        batches.addAll(openBatches.values());
 
-    public void apply() {
-        File inputImagesFolder = new File(inputImageFolder);
-        for (File inputImage : inputImagesFolder.listFiles()) {
-            if (inputImage.isFile()) {
-                applyClassifier(inputImage);
+        BatchExecutor<List<File>> batchExecutor = new BatchExecutor<List<File>>(numberOfThreads);
+        batchExecutor.setMemoryBudget(MemoryBudget.getDefault(), new BatchExecutor.Footprint<List<File>>() {
+            @Override
+            public long estimate(List<File> batch) {
+                long footprint = 0;
+                for (File inputImage : batch) {
+                    footprint += estimateFootprint(inputImage);
+                }
+                return footprint;
             }
+        });
+        if (workQueue != null) {
+            batchExecutor.setWorkQueue(workQueue, new BatchExecutor.ItemName<List<File>>() {
+                @Override
+                public String getName(List<File> batch) {
+                    return batch.get(0).getName();
+                }
+            });
         }
+        List<BatchExecutor.Failure<List<File>>> failures = batchExecutor.execute(batches, new BatchExecutor.Task<List<File>>() {
+            @Override
+            public void process(List<File> batch) throws IOException {
+                Map<File, String> inputHashes = new HashMap<File, String>();
+                List<File> pending = new ArrayList<File>();
+                int failed = 0;
+                for (File inputImage : batch) {
+                    String inputHash;
+                    try {
+                        inputHash = BatchManifest.hash(inputImage);
+                    } catch (IOException e) {
+                        IJ.log("Failed to process " + inputImage + ": " + e);
+                        failed++;
+                        continue;
+                    }
+                    if (incremental && batchManifest.isUpToDate(getOutputFileName(inputImage), inputHash, modelHash)) {
+                        Metrics.increment("weka_skipped");
+                        continue;
+                    }
+                    inputHashes.put(inputImage, inputHash);
+                    pending.add(inputImage);
+                }
+
+                List<File> written;
+                if (pending.size() == 1) {
+                    written = new ArrayList<File>();
+                    if (applyClassifier(pending.get(0), inputHashes.get(pending.get(0)))) {
+                        written.add(pending.get(0));
+                    }
+                } else {
+                    written = pending.isEmpty() ? new ArrayList<File>() : applyClassifier(pending);
+                }
+                for (File inputImage : written) {
+                    batchManifest.record(getOutputFileName(inputImage), inputHashes.get(inputImage), modelHash);
+                }
+                failed += pending.size() - written.size();
+                if (failed > 0) {
+                    throw new IOException(failed + " of " + batch.size() + " images of the batch of " + batch.get(0).getName() + " were not written");
+                }
+            }
+        });
+        return BatchExecutor.report("Weka Segmentation", failures);
     }
 
     public static void main(String[] args) {
@@ -118,8 +306,8 @@ public class WekaSegmentaionStage {
      */
     private void prepare() {
 
-        //loads the classifier
-        wekaSegmentaion.loadClassifier(this.classifierModelFileAddress);
+        //loads the classifier(or takes the already loaded one)
+        wekaSegmentaion = ClassifierCache.get(this.classifierModelFileAddress);
 
         File inputImagesFolder = new File(inputImageFolder);
         File outputImageFolder = new File(outpurImageFolder);
@@ -137,6 +325,113 @@ public class WekaSegmentaionStage {
 
     }
 
+    /**
+     * When tiling, the feature stacks only cover the tiles being classified, the probability map covers the whole image
+     */
+    private long estimateFootprint(File inputImage) {
+        int[] dimensions = MemoryBudget.getDimensions(inputImage);
+        if (dimensions == null) {
+            return MemoryBudget.estimate(inputImage, WORKING_COPIES);
+        }
+        if (tileSize <= 0 || wekaSegmentaion == null || dimensions[2] > 1 || (dimensions[0] <= tileSize && dimensions[1] <= tileSize)) {
+            //the features are float, whatever the bit depth of the image
+            return MemoryBudget.estimate(dimensions[0], dimensions[1], 32, dimensions[2]) * WORKING_COPIES;
+        }
+        int window = tileSize + 2 * new TiledClassifier(wekaSegmentaion).getHalo();
+        long image = MemoryBudget.estimate(dimensions[0], dimensions[1], 32, 1) * (wekaSegmentaion.getNumOfClasses() + 1);
+        long tiles = MemoryBudget.estimate(window, window, 32, 1) * WORKING_COPIES * tileThreads;
+        return image + tiles;
+    }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    /**
+     * @param numberOfThreads number of images classified at the same time by <code>apply()</code>
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @param incremental if true, <code>apply()</code> skips the images whose output is up to date. If false, all images are processed again
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @param tileSize images larger than this(in px) are classified tile by tile. 0 classifies every image at once
+     */
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    public int getTileThreads() {
+        return tileThreads;
+    }
+
+    /**
+     * @param tileThreads number of tiles of one image classified at the same time
+     */
+    public void setTileThreads(int tileThreads) {
+        this.tileThreads = tileThreads;
+    }
+
+    public FeatureCache getFeatureCache() {
+        return featureCache;
+    }
+
+    /**
+     * @param featureCache cache of feature stacks shared by the models applied on the same images. null computes the features every time
+     */
+    public void setFeatureCache(FeatureCache featureCache) {
+        this.featureCache = featureCache;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize maximum number of images of the same size classified in one stack. 1 classifies every image on its own
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public String getEmbryoMaskFolder() {
+        return embryoMaskFolder;
+    }
+
+    /**
+     * @param embryoMaskFolder folder with the cell masks made by <code>EmbryoBoundryDetection</code>. Only the part of every image near
+     *                         the embryo is classified, the background gets a constant probability. null classifies whole images
+     */
+    public void setEmbryoMaskFolder(String embryoMaskFolder) {
+        this.embryoMaskFolder = embryoMaskFolder;
+    }
+
+    public WorkQueue getWorkQueue() {
+        return workQueue;
+    }
+
+    /**
+     * @param workQueue queue shared with other processes working on the same folders, null to do all the images
+     */
+    public void setWorkQueue(WorkQueue workQueue) {
+        this.workQueue = workQueue;
+    }
+
     public String getOutpurImageFolder() {
         return outpurImageFolder;
     }
@@ -149,24 +444,144 @@ public class WekaSegmentaionStage {
      * Applies the classifier on the given image, represented by imageFile File object
      *
      * @param imageFile File object that points to the input image
+     * @param imageHash hash of imageFile, for the feature cache
+     * @return true if the result was written
      */
-    private void applyClassifier(File imageFile) {
+    private boolean applyClassifier(File imageFile, String imageHash) {
+        if (wekaSegmentaion == null) {
+            IJ.error("Classifier not loaded");
+            return false;
+        }
+        long start = Metrics.start();
         ImagePlus imagePlus = new ImagePlus(imageFile.getAbsolutePath());
-        if (imagePlus != null) {
+        Metrics.stop("weka_read_seconds", start);
+        //ImagePlus has no processor when the file could not be read
+        if (imagePlus.getProcessor() != null) {
             // apply classifier and get results (0 indicates number of threads is auto-detected) and true for probability map
-            ImagePlus result = wekaSegmentaion.applyClassifier(imagePlus, 0, true);
-
-            //make outputFileName
-            String outputFileName = imageFile.getName();
-            new FileSaver(result).saveAsJpeg(outpurImageFolder + File.separator + outputFileName);
+            // when several images are classified at the same time the processors are shared between them
+            int classifierThreads = numberOfThreads > 1 ? Math.max(1, Runtime.getRuntime().availableProcessors() / numberOfThreads) : 0;
+            start = Metrics.start();
+            ImagePlus result;
+            File embryoMask = getEmbryoMask(imageFile);
+            if (embryoMaskFolder != null && embryoMask == null) {
+                IJ.log("No cell mask for " + imageFile.getName() + ", the whole image is classified");
+            }
+            if (tileSize > 0 || embryoMask != null) {
+                TiledClassifier tiledClassifier = new TiledClassifier(wekaSegmentaion);
+                //without tiling only the bounds of the embryo are classified, in one piece
+                tiledClassifier.setTileSize(tileSize > 0 ? tileSize : Integer.MAX_VALUE);
+                tiledClassifier.setNumberOfThreads(tileThreads);
+                tiledClassifier.setClassifierThreads(classifierThreads);
+                tiledClassifier.setMargin(EMBRYO_MARGIN);
+                result = tiledClassifier.apply(imagePlus, embryoMask == null ? null
+                        : EmbryoBoundryDetection.getEmbryoRegion(new ImagePlus(embryoMask.getAbsolutePath())));
+            } else if (featureCache != null) {
+                FeatureStackArray featureStackArray = featureCache.getFeatures(imagePlus, imageHash, wekaSegmentaion);
+                result = featureStackArray == null ? null : wekaSegmentaion.applyClassifier(featureStackArray, classifierThreads, true);
+            } else {
+                result = wekaSegmentaion.applyClassifier(imagePlus, classifierThreads, true);
+            }
+            Metrics.stop("weka_classify_seconds", start);
+            if (result == null) {
+                IJ.error("Not able to classify " + imageFile.getName());
+                return false;
+            }
 
-            // force garbage collection (important for large images)
-            result = null;
-            imagePlus = null;
-            System.gc();
+            return write(result, imageFile);
         } else {
-            IJ.error("Not able to read image");
+            IJ.log("Not able to read " + imageFile.getName());
+            return false;
+        }
+    }
+
+    /**
+     * Applies the classifier on a batch of images in one stack. An image that does not fit the first one(eg. of another type) is
+     * classified on its own
+     *
+     * @param imageFiles images with one slice each, of the same size
+     * @return images whose result was written
+     */
+    private List<File> applyClassifier(List<File> imageFiles) {
+        List<File> written = new ArrayList<File>();
+        if (wekaSegmentaion == null) {
+            IJ.error("Classifier not loaded");
+            return written;
+        }
+        long start = Metrics.start();
+        List<File> stackFiles = new ArrayList<File>();
+        List<ImagePlus> stackImages = new ArrayList<ImagePlus>();
+        for (File imageFile : imageFiles) {
+            ImagePlus imagePlus = new ImagePlus(imageFile.getAbsolutePath());
+            if (imagePlus.getProcessor() == null) {
+                //an image that can not be read is left out, the rest of the batch goes on
+                IJ.log("Not able to read " + imageFile.getName());
+                continue;
+            }
+            if (stackImages.isEmpty() || StackClassifier.isCompatible(stackImages.get(0), imagePlus)) {
+                stackFiles.add(imageFile);
+                stackImages.add(imagePlus);
+            } else if (applyClassifier(imageFile, null)) {
+                written.add(imageFile);
+            }
+        }
+        Metrics.stop("weka_read_seconds", start);
+        if (stackImages.isEmpty()) {
+            return written;
         }
+
+        //the processors are shared between the batches classified at the same time
+        int classifierThreads = numberOfThreads > 1 ? Math.max(1, Runtime.getRuntime().availableProcessors() / numberOfThreads) : 0;
+        start = Metrics.start();
+        ImagePlus[] results = new StackClassifier(wekaSegmentaion).apply(stackImages, classifierThreads);
+        Metrics.stop("weka_classify_seconds", start);
+        if (results == null) {
+            IJ.error("Not able to classify the batch of " + stackFiles.get(0).getName());
+            return written;
+        }
+        Metrics.increment("weka_batches");
+        Metrics.observe("weka_batch_size", stackFiles.size());
+        for (int i = 0; i < results.length; i++) {
+            if (write(results[i], stackFiles.get(i))) {
+                written.add(stackFiles.get(i));
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes the probability map of imageFile into the output folder. Probability maps are written without loss
+     * @return true if it was written
+     */
+    private boolean write(ImagePlus result, File imageFile) {
+        String outputFileName = getOutputFileName(imageFile);
+        try {
+            long start = Metrics.start();
+            FloatImageIO.write(result, new File(outpurImageFolder, outputFileName));
+            Metrics.stop("weka_write_seconds", start);
+            Metrics.increment("weka_images");
+            return true;
+        } catch (IOException e) {
+            IJ.error("Not able to write " + outputFileName + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return cell mask of imageFile in <code>embryoMaskFolder</code>, null if masking is off or the mask was not made
+     */
+    private File getEmbryoMask(File imageFile) {
+        if (embryoMaskFolder == null) {
+            return null;
+        }
+        File embryoMask = new File(embryoMaskFolder, imageFile.getName());
+        return embryoMask.isFile() ? embryoMask : null;
+    }
+
+    /**
+     * @return name of the file in the output folder that <code>applyClassifier(imageFile)</code> writes
+     */
+    private static String getOutputFileName(File imageFile) {
+        return FloatImageIO.withExtension(imageFile.getName(), FloatImageIO.EXTENSION);
     }
 
     /*
@@ -0,0 +1,240 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <code>WorkQueue</code> shares the items of a stage between several worker processes on the same machine, through files in a folder.
+ * No server is needed, only a local file system.
+ *
+ * For every item there are up to three files in the folder:
+ * <ul>
+ * <li><code>name.claim</code>: the item is being processed. It is made with an exclusive create, so only one worker gets it</li>
+ * <li><code>name.done</code>: the item was processed</li>
+ * <li><code>name.failed</code>: the item failed, it is not tried again by this run</li>
+ * </ul>
+ * A worker renews(touches) its claims every <code>leaseMillis / 3</code>. A claim that was not renewed for <code>leaseMillis</code>
+ * belongs to a worker that crashed: another worker renames it away(only one rename can win) and claims the item again.
+ * The renamed claim is read back, and put back if it turns out to be a fresh claim of another worker. Workers only remove or renew
+ * claims that hold their own name.
+ * A worker that was only stalled may then finish the item too, which does no harm as both write the same output.
+ *
+ * @see BatchExecutor#setWorkQueue(WorkQueue, BatchExecutor.ItemName)
+ * @see HeadlessRunner
+ */
+public class WorkQueue {
+
+    private static final String CLAIM = ".claim";
+    private static final String DONE = ".done";
+    private static final String FAILED = ".failed";
+
+    private final File directory;
+    private final String owner;
+    private final long leaseMillis;
+
+    /**
+     * names of the items claimed by this worker and not finished yet
+     */
+    private final Set<String> held = new HashSet<String>();
+    private Thread heartbeat;
+
+    /**
+     * @param directory   folder shared by the workers of a stage, made if it does not exist
+     * @param owner       name of this worker, written into its claims
+     * @param leaseMillis time after which the claim of a worker that stopped renewing it expires
+     * @throws IOException if the folder can not be made
+     */
+    public WorkQueue(File directory, String owner, long leaseMillis) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Not able to create " + directory);
+        }
+        this.directory = directory;
+        this.owner = owner;
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Tries to claim an item for this worker
+     * @param name name of the item, eg. the name of the input file
+     * @return true if this worker should process the item
+     * @throws IOException if the claim can not be written
+     */
+    public boolean claim(String name) throws IOException {
+        if (isFinished(name)) {
+            return false;
+        }
+        File claim = file(name, CLAIM);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                Files.write(claim.toPath(), owner.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                if (System.currentTimeMillis() - claim.lastModified() <= leaseMillis) {
+                    return false;
+                }
+                //the owner stopped renewing its claim. Only the worker whose rename succeeds removes it
+                String staleOwner = readOwner(claim);
+                File stale = new File(directory, claim.getName() + "." + owner + ".stale");
+                if (staleOwner == null || !claim.renameTo(stale)) {
+                    return false;
+                }
+                //another worker may have taken the stale claim over and made a new one between the check and the rename
+                if (!staleOwner.equals(readOwner(stale)) || System.currentTimeMillis() - stale.lastModified() <= leaseMillis) {
+                    try {
+                        Files.move(stale.toPath(), claim.toPath());
+                    } catch (IOException moveException) {
+                        //a third worker claimed it in the mean time, the item may then be processed twice, which does no harm
+                        stale.delete();
+                    }
+                    return false;
+                }
+                stale.delete();
+                Metrics.increment("workqueue_expired_claims");
+                continue;
+            }
+            synchronized (this) {
+                held.add(name);
+                startHeartbeat();
+            }
+            //another worker may have finished the item between the check and the claim
+            if (isFinished(name)) {
+                release(name);
+                return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks a claimed item as processed
+     */
+    public void complete(String name) throws IOException {
+        finish(name, DONE);
+    }
+
+    /**
+     * Marks a claimed item as failed, so that no worker tries it again in this run
+     */
+    public void fail(String name) throws IOException {
+        finish(name, FAILED);
+    }
+
+    /**
+     * @return true if the item was processed or failed
+     */
+    public boolean isFinished(String name) {
+        return file(name, DONE).isFile() || file(name, FAILED).isFile();
+    }
+
+    /**
+     * @return true if the item is claimed by some worker and not finished yet. It may still be taken over once the claim expires
+     */
+    public boolean isPending(String name) {
+        return file(name, CLAIM).isFile() && !isFinished(name);
+    }
+
+    /**
+     * @return time to wait before looking again at items claimed by other workers
+     */
+    public long getRetryInterval() {
+        return Math.max(100, leaseMillis / 3);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Stops renewing the claims of this worker. Claims that were not finished expire after <code>leaseMillis</code>
+     */
+    public synchronized void close() {
+        if (heartbeat != null) {
+            heartbeat.interrupt();
+            heartbeat = null;
+        }
+    }
+
+    /**
+     * Deletes all the files of the queue, eg. once all the workers of a stage are done
+     */
+    public static void clear(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private void finish(String name, String marker) throws IOException {
+        Files.write(file(name, marker).toPath(), owner.getBytes(StandardCharsets.UTF_8));
+        release(name);
+    }
+
+    private void release(String name) {
+        synchronized (this) {
+            held.remove(name);
+        }
+        //a worker that stalled past its lease must not remove the claim of the worker that took the item over
+        File claim = file(name, CLAIM);
+        if (owner.equals(readOwner(claim))) {
+            claim.delete();
+        }
+    }
+
+    /*
+    owner written in a claim, null if it can not be read(eg. it was removed)
+     */
+    private static String readOwner(File claim) {
+        try {
+            return new String(Files.readAllBytes(claim.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private File file(String name, String suffix) {
+        return new File(directory, name + suffix);
+    }
+
+    /*
+    renews the claims of this worker while it holds any
+     */
+    private void startHeartbeat() {
+        if (heartbeat != null) {
+            return;
+        }
+        heartbeat = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Thread.sleep(Math.max(10, leaseMillis / 3));
+                        List<String> names;
+                        synchronized (WorkQueue.this) {
+                            names = new ArrayList<String>(held);
+                        }
+                        long now = System.currentTimeMillis();
+                        for (String name : names) {
+                            File claim = file(name, CLAIM);
+                            if (owner.equals(readOwner(claim))) {
+                                claim.setLastModified(now);
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "WorkQueue heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
+}